@@ -0,0 +1,88 @@
+package simplf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import simplf.parser.simplfLexer;
+import simplf.parser.simplfParser;
+
+// Runs the programs in tests/ and bench/ over and over on the tree engine and
+// prints the time per pass. Which dispatch the Interpreter uses is fixed when
+// it is loaded, so "make bench" runs this once with -Dsimplf.visitor=true and
+// once without. Programs are parsed and resolved once; files that no longer
+// parse (most of tests/ predates type annotations) are skipped, and output
+// is thrown away.
+public class DispatchBench {
+    private static final int WARMUP = 1000;
+    private static final int PASSES = 1000;
+
+    public static void main(String[] args) throws IOException {
+        List<List<Stmt>> programs = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        for (Path file : sources("tests", "bench")) {
+            simplfLexer lexer = new simplfLexer(CharStreams.fromPath(file));
+            lexer.removeErrorListeners();
+            simplfParser parser = new simplfParser(new CommonTokenStream(lexer));
+            parser.removeErrorListeners();
+            List<Stmt> parsed = parser.program().val;
+            if (parser.getNumberOfSyntaxErrors() > 0) {
+                continue;
+            }
+            List<Stmt> stmts = new Desugar().desugar(parsed);
+            stmts = new Inliner(true).inline(stmts);
+            stmts = new ConstantFolder(true).fold(stmts);
+            stmts = new LoopHoister().hoist(stmts);
+            Resolver resolver = new Resolver();
+            resolver.resolve(stmts);
+            programs.add(stmts);
+            slots.add(resolver.globalSlots());
+        }
+
+        PrintStream out = System.out, err = System.err;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(discard);
+        System.setErr(discard);
+        long best = Long.MAX_VALUE;
+        try {
+            for (int pass = 0; pass < WARMUP + PASSES; pass++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < programs.size(); i++) {
+                    Interpreter interpreter = new Interpreter();
+                    interpreter.globals.reserve(slots.get(i));
+                    interpreter.interpret(programs.get(i));
+                }
+                Output.flush();
+                if (pass >= WARMUP) {
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        System.out.printf("%s dispatch: %d programs, best pass %.1f us%n",
+                Interpreter.VISITOR ? "visitor" : "pattern", programs.size(), best / 1000.0);
+    }
+
+    private static List<Path> sources(String... dirs) throws IOException {
+        List<Path> sources = new ArrayList<>();
+        for (String dir : dirs) {
+            try (Stream<Path> files = Files.list(Paths.get(dir))) {
+                files.filter(file -> file.toString().endsWith(".simplf"))
+                    .sorted()
+                    .forEach(sources::add);
+            }
+        }
+        return sources;
+    }
+}
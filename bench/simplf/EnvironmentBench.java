@@ -0,0 +1,72 @@
+package simplf;
+
+import java.util.Random;
+
+// Define and lookup cost of Environment (a Hamt underneath) against the
+// plain association list it replaced, for 10, 1k and 100k bindings. Every
+// define keeps the previous version alive, as closures do. Run with
+// "make bench".
+public class EnvironmentBench {
+    private static final int LOOKUPS = 10_000;
+    private static final int ROUNDS = 5;
+
+    // keeps the lookups from being optimized away
+    static long sink;
+
+    public static void main(String[] args) {
+        for (int n : new int[] {10, 1_000, 100_000}) {
+            Token[] names = new Token[n];
+            for (int i = 0; i < n; i++) {
+                names[i] = new Token(TokenType.IDENTIFIER, "bench$" + i, "bench$" + i, 0, 0);
+            }
+            int[] lookups = new int[LOOKUPS];
+            Random random = new Random(n);
+            for (int i = 0; i < LOOKUPS; i++) {
+                lookups[i] = random.nextInt(n);
+            }
+
+            long listDefine = Long.MAX_VALUE, listGet = Long.MAX_VALUE;
+            long hamtDefine = Long.MAX_VALUE, hamtGet = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                AssocList list = null;
+                for (int i = 0; i < n; i++) {
+                    list = new AssocList(names[i].lexeme, names[i].id, i, list);
+                }
+                long mid = System.nanoTime();
+                for (int i : lookups) {
+                    sink += (Integer) find(list, names[i].id).value;
+                }
+                long end = System.nanoTime();
+                listDefine = Math.min(listDefine, mid - start);
+                listGet = Math.min(listGet, end - mid);
+
+                start = System.nanoTime();
+                Environment env = new Environment();
+                for (int i = 0; i < n; i++) {
+                    env = env.define(names[i], names[i].lexeme, i);
+                }
+                mid = System.nanoTime();
+                for (int i : lookups) {
+                    sink += (Integer) ((AssocList) env.get(names[i])).value;
+                }
+                end = System.nanoTime();
+                hamtDefine = Math.min(hamtDefine, mid - start);
+                hamtGet = Math.min(hamtGet, end - mid);
+            }
+            System.out.printf("%7d bindings  define ns/op: list %7.1f  hamt %7.1f"
+                    + "  get ns/op: list %10.1f  hamt %7.1f%n",
+                    n, (double) listDefine / n, (double) hamtDefine / n,
+                    (double) listGet / LOOKUPS, (double) hamtGet / LOOKUPS);
+        }
+    }
+
+    private static AssocList find(AssocList list, int id) {
+        for (AssocList cur = list; cur != null; cur = cur.next) {
+            if (cur.id == id) {
+                return cur;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,102 @@
+package simplf;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import simplf.parser.simplfLexer;
+import simplf.parser.simplfParser;
+
+// Checks that loop conditions comparing typed floats still take the
+// Interpreter's compareDoubles path after the Inliner, ConstantFolder and
+// LoopHoister have rebuilt them: both operands must keep the FLOAT type the
+// TypeChecker gave them, and the comparison's node must never have been
+// specialized, since only the generic path goes through it. The conditions
+// cover a parameter substituted by the Inliner, a global the ConstantFolder
+// leaves alone and a hoisted loop invariant. Run with "make check".
+public class FastPathCheck {
+    private static final String SOURCE = String.join("\n",
+        "fun count(n : float) : float {",
+        "    var i : float = 0;",
+        "    while (i < n) { i = i + 1; }",
+        "    i;",
+        "}",
+        "var limit : float = 0;",
+        "limit = 5;",
+        "print count(limit);",
+        "var j : float = 0;",
+        "while (j < limit * 2) { j = j + 1; }",
+        "print j;");
+
+    public static void main(String[] args) {
+        simplfLexer lexer = new simplfLexer(CharStreams.fromString(SOURCE));
+        simplfParser parser = new simplfParser(new CommonTokenStream(lexer));
+        List<Stmt> stmts = new Desugar().desugar(parser.program().val);
+        if (!new TypeChecker().typeCheck(stmts)) {
+            fail("does not type check");
+        }
+        stmts = new Inliner(true).inline(stmts);
+        stmts = new ConstantFolder(true).fold(stmts);
+        stmts = new LoopHoister().hoist(stmts);
+        Resolver resolver = new Resolver();
+        resolver.resolve(stmts);
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter interpreter = new Interpreter();
+            interpreter.globals.reserve(resolver.globalSlots());
+            interpreter.interpret(stmts);
+            Output.flush();
+        } finally {
+            System.setOut(out);
+        }
+
+        List<Expr> conditions = new ArrayList<>();
+        conditions(stmts, conditions);
+        if (conditions.size() < 2) {
+            fail("expected both loops, found " + conditions.size());
+        }
+        for (Expr cond : conditions) {
+            if (!(cond instanceof Expr.Binary)) {
+                fail("loop condition is not a comparison");
+            }
+            Expr.Binary binary = (Expr.Binary) cond;
+            if (binary.left.type != DataType.FLOAT || binary.right.type != DataType.FLOAT) {
+                fail("operands of " + binary.op.lexeme + " on line " + binary.op.line
+                        + " lost their type: " + binary.left.type + ", " + binary.right.type);
+            }
+            if (binary.node != BinaryNode.UNINITIALIZED) {
+                fail(binary.op.lexeme + " on line " + binary.op.line + " went through its node");
+            }
+        }
+        System.out.println("typed comparisons: " + conditions.size() + " on the fast path");
+    }
+
+    private static void conditions(List<Stmt> stmts, List<Expr> found) {
+        for (Stmt stmt : stmts) {
+            if (stmt instanceof Stmt.While loop) {
+                found.add(loop.cond);
+                conditions(List.of(loop.body), found);
+            } else if (stmt instanceof Stmt.Block block) {
+                conditions(block.statements, found);
+            } else if (stmt instanceof Stmt.If branch) {
+                conditions(List.of(branch.thenBranch), found);
+                if (branch.elseBranch != null) {
+                    conditions(List.of(branch.elseBranch), found);
+                }
+            } else if (stmt instanceof Stmt.Function function) {
+                conditions(function.body, found);
+            }
+        }
+    }
+
+    private static void fail(String message) {
+        System.err.println("FastPathCheck: " + message);
+        System.exit(1);
+    }
+}
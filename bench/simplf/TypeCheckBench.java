@@ -0,0 +1,71 @@
+package simplf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import simplf.parser.simplfLexer;
+import simplf.parser.simplfParser;
+
+// Time to type check generated programs of 10k, 100k and 1M lines, made of
+// the same function repeated under different names: a loop, both branches
+// of an if and a call. The checker makes one pass, so the time per line
+// should stay flat as the programs grow. Programs are parsed once, outside
+// the timing, and each round checks with a fresh TypeChecker. Run with
+// "make bench".
+public class TypeCheckBench {
+    private static final int WARMUP = 200;
+    private static final int ROUNDS = 10;
+
+    private static final String[] UNIT = {
+        "var g$ : float = $;",
+        "fun f$(n : float, s : string) : float {",
+        "    var acc : float = 0;",
+        "    var i : float = 0;",
+        "    while (i < n) {",
+        "        if (i > 2) { acc = acc + i * g$; } else { acc = acc - 1; }",
+        "        i = i + 1;",
+        "    }",
+        "    print s + \"done\";",
+        "    acc;",
+        "}",
+        "print f$(3, \"f$\");",
+    };
+
+    public static void main(String[] args) {
+        List<Stmt> warmup = generate(10_000 / UNIT.length);
+        for (int i = 0; i < WARMUP; i++) {
+            new TypeChecker().typeCheck(warmup);
+        }
+        for (int lines : new int[] {10_000, 100_000, 1_000_000}) {
+            List<Stmt> program = generate(lines / UNIT.length);
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                new TypeChecker().typeCheck(program);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%,9d lines: best %8.1f ms, %6.1f ns/line%n",
+                    lines, best / 1e6, (double) best / lines);
+        }
+    }
+
+    // The parser slows down on long inputs, so each copy of the unit is
+    // parsed on its own and the statements put together.
+    private static List<Stmt> generate(int units) {
+        List<Stmt> program = new ArrayList<>();
+        for (int i = 0; i < units; i++) {
+            String k = Integer.toString(i);
+            StringBuilder source = new StringBuilder();
+            for (String line : UNIT) {
+                source.append(line.replace("$", k)).append('\n');
+            }
+            simplfLexer lexer = new simplfLexer(CharStreams.fromString(source.toString()));
+            simplfParser parser = new simplfParser(new CommonTokenStream(lexer));
+            program.addAll(new Desugar().desugar(parser.program().val));
+        }
+        return program;
+    }
+}
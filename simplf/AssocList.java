@@ -2,11 +2,13 @@ package simplf;
 
 public class AssocList {
         final String name;
+        final int id;
         Object value;
         final AssocList next;
     
-        AssocList(String nameIn, Object valueIn, AssocList nextIn) {
+        AssocList(String nameIn, int idIn, Object valueIn, AssocList nextIn) {
             name = nameIn;
+            id = idIn;
             value = valueIn;
             next = nextIn;
         }
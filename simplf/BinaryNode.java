@@ -0,0 +1,216 @@
+package simplf;
+
+// Executable implementation of a binary operator, hung off each Expr.Binary.
+// A fresh Binary starts out uninitialized; the first time it runs it rewrites
+// itself into a node specialized for the operator and the operand types it
+// saw (number arithmetic, string concatenation, ...), so later evaluations
+// skip both the operator switch and the type tests of the generic path. A
+// specialized node that meets other operand types deoptimizes the Binary to
+// the generic node for good.
+abstract class BinaryNode {
+
+    abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+    static final BinaryNode GENERIC = new Generic();
+
+    // Replace the node and run the replacement on the current operands.
+    private static Object rewrite(Expr.Binary expr, BinaryNode node, Object left, Object right) {
+        expr.node = node;
+        return node.execute(expr, left, right);
+    }
+
+    private static Object deoptimize(Expr.Binary expr, Object left, Object right) {
+        return rewrite(expr, GENERIC, left, right);
+    }
+
+    private static final class Uninitialized extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return rewrite(expr, specialize(expr.op.type, left, right), left, right);
+        }
+
+        private static BinaryNode specialize(TokenType op, Object left, Object right) {
+            boolean numbers = left instanceof Double && right instanceof Double;
+            switch (op) {
+                case PLUS:
+                    if (numbers) return new AddNumbers();
+                    if (Values.isString(left) || Values.isString(right)) return new Concat();
+                    break;
+                case MINUS:         if (numbers) return new SubtractNumbers(); break;
+                case STAR:          if (numbers) return new MultiplyNumbers(); break;
+                case SLASH:         if (numbers) return new DivideNumbers(); break;
+                case GREATER:       if (numbers) return new GreaterNumbers(); break;
+                case GREATER_EQUAL: if (numbers) return new GreaterEqualNumbers(); break;
+                case LESS:          if (numbers) return new LessNumbers(); break;
+                case LESS_EQUAL:    if (numbers) return new LessEqualNumbers(); break;
+                case EQUAL_EQUAL:   return new Equal();
+                case BANG_EQUAL:    return new NotEqual();
+                case COMMA:         return new Comma();
+                default:
+                    break;
+            }
+            return GENERIC;
+        }
+    }
+
+    private static final class AddNumbers extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left + (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    private static final class Concat extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (Values.isString(left) || Values.isString(right)) {
+                return Values.concat(left, right);
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    private static final class SubtractNumbers extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left - (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    private static final class MultiplyNumbers extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left * (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    private static final class DivideNumbers extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                if ((double) right == 0) {
+                    throw new RuntimeError(expr.op, "Cannot divide by zero.");
+                }
+                return (double) left / (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    private static final class GreaterNumbers extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left > (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    private static final class GreaterEqualNumbers extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left >= (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    private static final class LessNumbers extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left < (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    private static final class LessEqualNumbers extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return (double) left <= (double) right;
+            }
+            return deoptimize(expr, left, right);
+        }
+    }
+
+    // Equality and the comma operator accept any operands, so they never deoptimize.
+    private static final class Equal extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return Values.isEqual(left, right);
+        }
+    }
+
+    private static final class NotEqual extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return !Values.isEqual(left, right);
+        }
+    }
+
+    private static final class Comma extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return right;
+        }
+    }
+
+    // The unspecialized operator: dispatch on the operator, check the types
+    // and report errors exactly as before specialization existed.
+    private static final class Generic extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            switch (expr.op.type) {
+                case PLUS:
+                    return Values.add(expr.op, left, right);
+                case MINUS:
+                    Values.checkNumbers(expr.op, left, right);
+                    return (double) left - (double) right;
+                case STAR:
+                    Values.checkNumbers(expr.op, left, right);
+                    return (double) left * (double) right;
+                case SLASH:
+                    Values.checkNumbers(expr.op, left, right);
+                    if ((double) right == 0) {
+                        throw new RuntimeError(expr.op, "Cannot divide by zero.");
+                    }
+                    return (double) left / (double) right;
+                case GREATER:
+                    Values.checkNumbers(expr.op, left, right);
+                    return (double) left > (double) right;
+                case GREATER_EQUAL:
+                    Values.checkNumbers(expr.op, left, right);
+                    return (double) left >= (double) right;
+                case LESS:
+                    Values.checkNumbers(expr.op, left, right);
+                    return (double) left < (double) right;
+                case LESS_EQUAL:
+                    Values.checkNumbers(expr.op, left, right);
+                    return (double) left <= (double) right;
+                case EQUAL_EQUAL:
+                    return Values.isEqual(left, right);
+                case BANG_EQUAL:
+                    return !Values.isEqual(left, right);
+                case COMMA:
+                    return right;
+                default:
+                    break;
+            }
+            return null;
+        }
+    }
+}
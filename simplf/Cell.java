@@ -0,0 +1,12 @@
+package simplf;
+
+// A variable that closures share. A captured variable that is assigned after
+// the closure is made lives in a Cell, and the closure captures the Cell
+// instead of the value, so both sides see every assignment.
+public final class Cell {
+    public Object value;
+
+    public Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,456 @@
+package simplf;
+
+import java.util.List;
+
+import simplf.Expr.Assign;
+import simplf.Expr.Binary;
+import simplf.Expr.Call;
+import simplf.Expr.Conditional;
+import simplf.Expr.Grouping;
+import simplf.Expr.Literal;
+import simplf.Expr.Logical;
+import simplf.Expr.Unary;
+import simplf.Expr.Variable;
+import simplf.Stmt.Block;
+import simplf.Stmt.Expression;
+import simplf.Stmt.For;
+import simplf.Stmt.Function;
+import simplf.Stmt.If;
+import simplf.Stmt.Print;
+import simplf.Stmt.Var;
+import simplf.Stmt.While;
+
+// The "closure" engine. Each statement and expression is turned, once, into
+// a small Code object that holds the Code of its children and whatever the
+// node decided statically (the slot of a variable, the depth it is found
+// at, which operator to run), so running it is a chain of direct calls with
+// no dispatch on the node and no visitor. A function's body is compiled
+// when its declaration is, and kept on the Stmt.Function; SimplfFunction
+// runs it in place of the tree walker until the Jit takes the function
+// over. The operator nodes specialize themselves here just as they do in
+// the Interpreter, which is what the Jit builds its fast paths from.
+//
+// The results are the same as the Interpreter's, including the values of
+// statements, the tail calls handed back to SimplfFunction.call and the
+// error for a Java stack overflow.
+final class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Code>,
+        Stmt.Visitor<ClosureCompiler.Code> {
+
+    interface Code {
+        Object run(Frame frame);
+    }
+
+    // An Expr.number expression, without boxing; see Interpreter.evaluateDouble.
+    interface NumberCode {
+        double run(Frame frame);
+    }
+
+    // passed on to callees, which only use it if they were not compiled
+    private static final Interpreter interpreter = new Interpreter();
+    private static final TailCall tailCall = new TailCall();
+
+    private ClosureCompiler() {}
+
+    // Runs a program on the global frame.
+    static void run(List<Stmt> stmts, Frame globals) {
+        ClosureCompiler compiler = new ClosureCompiler();
+        try {
+            for (Stmt stmt : stmts) {
+                compiler.compile(stmt).run(globals);
+            }
+        } catch (RuntimeError error) {
+            Simplf.runtimeError(error);
+        }
+    }
+
+    private Code compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Code compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // The value of the last statement, or a TailCall for the call it ends
+    // with, like Interpreter.executeBody.
+    private Code body(Function decl) {
+        List<Stmt> stmts = decl.body;
+        if (stmts.isEmpty()) {
+            return frame -> new Object();
+        }
+        int last = stmts.size() - 1;
+        Code result = decl.tailCall != null ? tailCall(decl.tailCall) : compile(stmts.get(last));
+        if (last == 0) {
+            return result;
+        }
+        Code[] before = new Code[last];
+        for (int i = 0; i < last; i++) {
+            before[i] = compile(stmts.get(i));
+        }
+        return frame -> {
+            for (Code code : before) {
+                code.run(frame);
+            }
+            return result.run(frame);
+        };
+    }
+
+    @Override
+    public Code visitExprStmt(Expression stmt) {
+        return compile(stmt.expr);
+    }
+
+    @Override
+    public Code visitPrintStmt(Print stmt) {
+        Code expr = compile(stmt.expr);
+        return frame -> {
+            Output.println(expr.run(frame));
+            return null;
+        };
+    }
+
+    @Override
+    public Code visitVarStmt(Var stmt) {
+        Code initializer = compile(stmt.initializer);
+        int slot = stmt.slot;
+        if (stmt.cell) {
+            return frame -> {
+                frame.slots[slot] = new Cell(initializer.run(frame));
+                return null;
+            };
+        }
+        return frame -> {
+            frame.slots[slot] = initializer.run(frame);
+            return null;
+        };
+    }
+
+    @Override
+    public Code visitBlockStmt(Block stmt) {
+        Code[] stmts = new Code[stmt.statements.size()];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = compile(stmt.statements.get(i));
+        }
+        return frame -> {
+            for (Code code : stmts) {
+                code.run(frame);
+            }
+            return new Object();
+        };
+    }
+
+    @Override
+    public Code visitIfStmt(If stmt) {
+        Code cond = compile(stmt.cond);
+        Code thenBranch = compile(stmt.thenBranch);
+        // like the VM, an if without an else does nothing when it is false
+        Code elseBranch = stmt.elseBranch == null ? frame -> null : compile(stmt.elseBranch);
+        // an if statement's value is its condition
+        return frame -> {
+            Object b = cond.run(frame);
+            if (b.equals(true)) {
+                thenBranch.run(frame);
+            } else {
+                elseBranch.run(frame);
+            }
+            return b;
+        };
+    }
+
+    @Override
+    public Code visitWhileStmt(While stmt) {
+        Code cond = compile(stmt.cond);
+        Code body = compile(stmt.body);
+        return frame -> {
+            while (cond.run(frame).equals(true)) {
+                body.run(frame);
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public Code visitForStmt(For stmt) {
+        Code init = compile(stmt.init);
+        Code cond = compile(stmt.cond);
+        Code incr = compile(stmt.incr);
+        Code body = compile(stmt.body);
+        return frame -> {
+            init.run(frame);
+            while (cond.run(frame).equals(true)) {
+                body.run(frame);
+                incr.run(frame);
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public Code visitFunctionStmt(Function stmt) {
+        if (stmt.code == null) {
+            stmt.code = body(stmt);
+        }
+        return frame -> SimplfFunction.define(stmt, frame);
+    }
+
+    @Override
+    public Code visitBinary(Binary expr) {
+        if (expr.number) {
+            NumberCode number = number(expr);
+            return frame -> number.run(frame);
+        }
+        if (expr.left.type == DataType.FLOAT && expr.right.type == DataType.FLOAT
+                && Interpreter.comparison(expr.op)) {
+            return compare(expr);
+        }
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        if (expr.op.type == TokenType.COMMA) {
+            return frame -> {
+                left.run(frame);
+                return right.run(frame);
+            };
+        }
+        // the node still specializes itself to the operand types it sees
+        return frame -> {
+            Object l = left.run(frame);
+            Object r = right.run(frame);
+            return expr.node.execute(expr, l, r);
+        };
+    }
+
+    // See Interpreter.compareDoubles.
+    private Code compare(Binary expr) {
+        if (expr.left.number && expr.right.number) {
+            NumberCode left = number(expr.left);
+            NumberCode right = number(expr.right);
+            switch (expr.op.type) {
+                case GREATER:
+                    return frame -> left.run(frame) > right.run(frame);
+                case GREATER_EQUAL:
+                    return frame -> left.run(frame) >= right.run(frame);
+                case LESS:
+                    return frame -> left.run(frame) < right.run(frame);
+                default:
+                    return frame -> left.run(frame) <= right.run(frame);
+            }
+        }
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        return frame -> {
+            Object l = left.run(frame);
+            Object r = right.run(frame);
+            if (l instanceof Double && r instanceof Double) {
+                return Values.compare(expr.op, (double) l, (double) r);
+            }
+            return expr.node.execute(expr, l, r);
+        };
+    }
+
+    @Override
+    public Code visitUnary(Unary expr) {
+        if (expr.number) {
+            NumberCode number = number(expr);
+            return frame -> number.run(frame);
+        }
+        Code right = compile(expr.right);
+        return frame -> expr.node.execute(expr, right.run(frame));
+    }
+
+    // An operand that is not Expr.number itself is checked, and when it is
+    // not a Double the operator's node reports the error.
+    private NumberCode number(Expr expr) {
+        if (expr instanceof Literal) {
+            double val = (double) ((Literal) expr).val;
+            return frame -> val;
+        }
+        if (expr instanceof Grouping) {
+            return number(((Grouping) expr).expression);
+        }
+        if (expr instanceof Unary) {
+            Unary unary = (Unary) expr;
+            if (unary.right.number) {
+                NumberCode right = number(unary.right);
+                return frame -> -right.run(frame);
+            }
+            Code right = compile(unary.right);
+            return frame -> {
+                Object r = right.run(frame);
+                return r instanceof Double ? -(double) r : (double) unary.node.execute(unary, r);
+            };
+        }
+        Binary binary = (Binary) expr;
+        if (binary.left.number && binary.right.number) {
+            NumberCode left = number(binary.left);
+            NumberCode right = number(binary.right);
+            switch (binary.op.type) {
+                case PLUS:
+                    return frame -> left.run(frame) + right.run(frame);
+                case MINUS:
+                    return frame -> left.run(frame) - right.run(frame);
+                case STAR:
+                    return frame -> left.run(frame) * right.run(frame);
+                default:
+                    return frame -> {
+                        double x = left.run(frame);
+                        return Values.arithmetic(binary.op, x, right.run(frame));
+                    };
+            }
+        }
+        NumberCode leftNumber = binary.left.number ? number(binary.left) : null;
+        NumberCode rightNumber = binary.right.number ? number(binary.right) : null;
+        Code left = leftNumber != null ? null : compile(binary.left);
+        Code right = rightNumber != null ? null : compile(binary.right);
+        return frame -> {
+            boolean numbers = true;
+            double x, y;
+            Object l = null, r = null;
+            if (leftNumber != null) {
+                x = leftNumber.run(frame);
+            } else {
+                l = left.run(frame);
+                numbers = l instanceof Double;
+                x = numbers ? (double) l : 0;
+            }
+            if (rightNumber != null) {
+                y = rightNumber.run(frame);
+            } else {
+                r = right.run(frame);
+                numbers &= r instanceof Double;
+                y = r instanceof Double ? (double) r : 0;
+            }
+            if (!numbers) {
+                return (double) binary.node.execute(binary,
+                        leftNumber != null ? x : l, rightNumber != null ? y : r);
+            }
+            return Values.arithmetic(binary.op, x, y);
+        };
+    }
+
+    @Override
+    public Code visitLiteral(Literal expr) {
+        Object val = expr.val;
+        return frame -> val;
+    }
+
+    @Override
+    public Code visitGrouping(Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Code visitVarExpr(Variable expr) {
+        int depth = expr.depth, slot = expr.slot;
+        if (depth < 0) {
+            return frame -> {
+                throw undefined(expr.name);
+            };
+        }
+        if (expr.cell) {
+            return frame -> ((Cell) frame.get(depth, slot)).value;
+        }
+        if (depth == 0) {
+            return frame -> frame.slots[slot];
+        }
+        if (depth == 1) {
+            return frame -> frame.enclosing.slots[slot];
+        }
+        return frame -> frame.get(depth, slot);
+    }
+
+    @Override
+    public Code visitAssignExpr(Assign expr) {
+        Code value = compile(expr.value);
+        int depth = expr.depth, slot = expr.slot;
+        if (depth < 0) {
+            return frame -> {
+                value.run(frame);
+                throw undefined(expr.name);
+            };
+        }
+        if (expr.cell) {
+            return frame -> {
+                Object val = value.run(frame);
+                ((Cell) frame.get(depth, slot)).value = val;
+                return val;
+            };
+        }
+        if (depth == 0) {
+            return frame -> frame.slots[slot] = value.run(frame);
+        }
+        return frame -> {
+            Object val = value.run(frame);
+            frame.set(depth, slot, val);
+            return val;
+        };
+    }
+
+    @Override
+    public Code visitLogicalExpr(Logical expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        if (expr.op.type == TokenType.OR) {
+            return frame -> {
+                Object l = left.run(frame);
+                return Values.isTruthy(l) ? l : right.run(frame);
+            };
+        }
+        return frame -> {
+            Object l = left.run(frame);
+            return !Values.isTruthy(l) ? l : right.run(frame);
+        };
+    }
+
+    @Override
+    public Code visitConditionalExpr(Conditional expr) {
+        Code cond = compile(expr.cond);
+        Code thenBranch = compile(expr.thenBranch);
+        Code elseBranch = compile(expr.elseBranch);
+        return frame -> Values.isTruthy(cond.run(frame))
+            ? thenBranch.run(frame) : elseBranch.run(frame);
+    }
+
+    @Override
+    public Code visitCallExpr(Call expr) {
+        Code callee = compile(expr.callee);
+        Code[] args = arguments(expr);
+        return frame -> {
+            SimplfCallable f = Interpreter.callee(callee.run(frame), expr.paren, args.length);
+            try {
+                return f.call(interpreter, enter(f, args, frame));
+            } catch (StackOverflowError e) {
+                throw new RuntimeError(expr.paren, "Stack overflow, try --engine=vm.");
+            }
+        };
+    }
+
+    // Sets up the call and hands it back for SimplfFunction.call to make.
+    private Code tailCall(Call expr) {
+        Code callee = compile(expr.callee);
+        Code[] args = arguments(expr);
+        return frame -> {
+            SimplfCallable f = Interpreter.callee(callee.run(frame), expr.paren, args.length);
+            return tailCall.set(f, enter(f, args, frame));
+        };
+    }
+
+    private Code[] arguments(Call expr) {
+        Code[] args = new Code[expr.args.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = compile(expr.args.get(i));
+        }
+        return args;
+    }
+
+    private static Frame enter(SimplfCallable f, Code[] args, Frame frame) {
+        Frame callFrame = f.enter();
+        for (int i = 0; i < args.length; i++) {
+            callFrame.slots[i] = args[i].run(frame);
+        }
+        return callFrame;
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Undefined Symbol: " + name.lexeme);
+    }
+}
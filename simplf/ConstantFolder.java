@@ -0,0 +1,428 @@
+package simplf;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import simplf.Expr.Assign;
+import simplf.Expr.Binary;
+import simplf.Expr.Call;
+import simplf.Expr.Conditional;
+import simplf.Expr.Grouping;
+import simplf.Expr.Literal;
+import simplf.Expr.Logical;
+import simplf.Expr.Unary;
+import simplf.Expr.Variable;
+import simplf.Stmt.Block;
+import simplf.Stmt.Expression;
+import simplf.Stmt.For;
+import simplf.Stmt.Function;
+import simplf.Stmt.If;
+import simplf.Stmt.Print;
+import simplf.Stmt.Var;
+import simplf.Stmt.While;
+
+// Runs after Desugar: folds operators over literals, drops groupings and
+// replaces reads of variables that always hold the same literal with that
+// literal. Like Desugar it rebuilds the tree instead of editing it.
+//
+// An operation that would fail at runtime (dividing by zero, adding a number
+// to a boolean, ...) is left alone so the error is still raised, at the same
+// point, by the engine that runs the program.
+//
+// A variable is constant when it is never assigned and its declaration runs
+// unconditionally before any read: not under an if, while or for in its own
+// function, since a read after a declaration that did not run sees nil. In
+// the REPL later lines can still assign globals, so only locals count there.
+public class ConstantFolder implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    // What is known about the variables of one function body, by slot.
+    private static class Scope {
+        final boolean[] assigned;
+        final Object[] values;
+        final boolean[] constant;
+
+        Scope(int size) {
+            assigned = new boolean[size];
+            values = new Object[size];
+            constant = new boolean[size];
+        }
+    }
+
+    private final boolean foldGlobals;
+    private final Map<Function, Scope> scopes = new IdentityHashMap<>();
+    private final List<Scope> stack = new ArrayList<>();
+    private Scope globals;
+    // if/while/for statements around the current one in this function
+    private int conditional;
+
+    public ConstantFolder(boolean foldGlobals) {
+        this.foldGlobals = foldGlobals;
+    }
+
+    public List<Stmt> fold(List<Stmt> stmts) {
+        // a throwaway resolution gives every variable its (depth, slot)
+        Resolver resolver = new Resolver(false);
+        resolver.resolve(stmts);
+        globals = new Scope(resolver.globalSlots());
+
+        stack.add(globals);
+        new AssignmentScan().scan(stmts);
+
+        ArrayList<Stmt> ret = new ArrayList<>();
+        for (Stmt stmt : stmts) {
+            ret.add(stmt.accept(this));
+        }
+        stack.clear();
+        return ret;
+    }
+
+    private Scope scope(int depth) {
+        return stack.get(stack.size() - 1 - depth);
+    }
+
+    // Marks every slot that an Assign writes to.
+    private class AssignmentScan implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        void scan(List<Stmt> stmts) {
+            for (Stmt stmt : stmts) {
+                stmt.accept(this);
+            }
+        }
+
+        @Override
+        public Void visitPrintStmt(Print stmt) {
+            return stmt.expr.accept(this);
+        }
+
+        @Override
+        public Void visitExprStmt(Expression stmt) {
+            return stmt.expr.accept(this);
+        }
+
+        @Override
+        public Void visitVarStmt(Var stmt) {
+            return stmt.initializer.accept(this);
+        }
+
+        @Override
+        public Void visitBlockStmt(Block stmt) {
+            scan(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(If stmt) {
+            stmt.cond.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) {
+                stmt.elseBranch.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(While stmt) {
+            stmt.cond.accept(this);
+            return stmt.body.accept(this);
+        }
+
+        @Override
+        public Void visitForStmt(For stmt) {
+            stmt.init.accept(this);
+            stmt.cond.accept(this);
+            stmt.incr.accept(this);
+            return stmt.body.accept(this);
+        }
+
+        @Override
+        public Void visitFunctionStmt(Function stmt) {
+            Scope scope = new Scope(stmt.frameSize);
+            scopes.put(stmt, scope);
+            stack.add(scope);
+            try {
+                scan(stmt.body);
+            } finally {
+                stack.remove(stack.size() - 1);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinary(Binary expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitUnary(Unary expr) {
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitLiteral(Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitGrouping(Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitVarExpr(Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Assign expr) {
+            if (expr.depth >= 0) {
+                scope(expr.depth).assigned[expr.slot] = true;
+            }
+            return expr.value.accept(this);
+        }
+
+        @Override
+        public Void visitLogicalExpr(Logical expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitConditionalExpr(Conditional expr) {
+            expr.cond.accept(this);
+            expr.thenBranch.accept(this);
+            return expr.elseBranch.accept(this);
+        }
+
+        @Override
+        public Void visitCallExpr(Call expr) {
+            expr.callee.accept(this);
+            for (Expr arg : expr.args) {
+                arg.accept(this);
+            }
+            return null;
+        }
+    }
+
+    private Stmt fold(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr fold(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Stmt foldConditional(Stmt stmt) {
+        conditional++;
+        try {
+            return fold(stmt);
+        } finally {
+            conditional--;
+        }
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Print stmt) {
+        return new Print(fold(stmt.expr));
+    }
+
+    @Override
+    public Stmt visitExprStmt(Expression stmt) {
+        return new Expression(fold(stmt.expr));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Var stmt) {
+        Expr initializer = fold(stmt.initializer);
+        Scope scope = scope(0);
+        // a slot can be reused by variables of blocks that have ended, so the
+        // previous owner's value must not carry over
+        scope.constant[stmt.slot] = initializer instanceof Literal && conditional == 0
+            && !scope.assigned[stmt.slot] && (scope != globals || foldGlobals);
+        scope.values[stmt.slot] = scope.constant[stmt.slot] ? ((Literal) initializer).val : null;
+        return new Var(stmt.name, initializer, stmt.type);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Block stmt) {
+        ArrayList<Stmt> statements = new ArrayList<>();
+        for (Stmt s : stmt.statements) {
+            statements.add(fold(s));
+        }
+        return new Block(statements);
+    }
+
+    @Override
+    public Stmt visitIfStmt(If stmt) {
+        Expr cond = fold(stmt.cond);
+        Stmt thenBranch = foldConditional(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : foldConditional(stmt.elseBranch);
+        return new If(cond, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(While stmt) {
+        conditional++;
+        try {
+            return new While(fold(stmt.cond), fold(stmt.body));
+        } finally {
+            conditional--;
+        }
+    }
+
+    @Override
+    public Stmt visitForStmt(For stmt) {
+        Expr init = fold(stmt.init);
+        conditional++;
+        try {
+            return new For(init, fold(stmt.cond), fold(stmt.incr), fold(stmt.body));
+        } finally {
+            conditional--;
+        }
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Function stmt) {
+        scope(0).constant[stmt.slot] = false;
+        int enclosingConditional = conditional;
+        conditional = 0;
+        stack.add(scopes.get(stmt));
+        try {
+            ArrayList<Stmt> body = new ArrayList<>();
+            for (Stmt s : stmt.body) {
+                body.add(fold(s));
+            }
+            return new Function(stmt.name, stmt.params, body, stmt.type, stmt.param_types);
+        } finally {
+            stack.remove(stack.size() - 1);
+            conditional = enclosingConditional;
+        }
+    }
+
+    @Override
+    public Expr visitBinary(Binary expr) {
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+        if (left instanceof Literal && right instanceof Literal) {
+            Object value = evaluate(expr.op.type, ((Literal) left).val, ((Literal) right).val);
+            if (value != NOT_CONSTANT) {
+                return new Literal(value).typed(expr);
+            }
+        }
+        return new Binary(left, expr.op, right).typed(expr);
+    }
+
+    private static final Object NOT_CONSTANT = new Object();
+
+    // The result of the operator, or NOT_CONSTANT where the runtime would
+    // raise an error.
+    private static Object evaluate(TokenType op, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        switch (op) {
+            case PLUS:
+                if (left instanceof String || right instanceof String) {
+                    return Values.concat(left, right).toString();
+                }
+                return numbers ? (Object) ((double) left + (double) right) : NOT_CONSTANT;
+            case MINUS:
+                return numbers ? (Object) ((double) left - (double) right) : NOT_CONSTANT;
+            case STAR:
+                return numbers ? (Object) ((double) left * (double) right) : NOT_CONSTANT;
+            case SLASH:
+                return numbers && (double) right != 0
+                    ? (Object) ((double) left / (double) right) : NOT_CONSTANT;
+            case GREATER:
+                return numbers ? (Object) ((double) left > (double) right) : NOT_CONSTANT;
+            case GREATER_EQUAL:
+                return numbers ? (Object) ((double) left >= (double) right) : NOT_CONSTANT;
+            case LESS:
+                return numbers ? (Object) ((double) left < (double) right) : NOT_CONSTANT;
+            case LESS_EQUAL:
+                return numbers ? (Object) ((double) left <= (double) right) : NOT_CONSTANT;
+            case EQUAL_EQUAL:
+                return Values.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Values.isEqual(left, right);
+            case COMMA:
+                return right;
+            default:
+                return NOT_CONSTANT;
+        }
+    }
+
+    @Override
+    public Expr visitUnary(Unary expr) {
+        Expr right = fold(expr.right);
+        if (right instanceof Literal) {
+            Object value = ((Literal) right).val;
+            if (expr.op.type == TokenType.MINUS && value instanceof Double) {
+                return new Literal(-(double) value).typed(expr);
+            }
+            if (expr.op.type == TokenType.BANG) {
+                return new Literal(!Values.isTruthy(value)).typed(expr);
+            }
+        }
+        return new Unary(expr.op, right).typed(expr);
+    }
+
+    @Override
+    public Expr visitLiteral(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGrouping(Grouping expr) {
+        return fold(expr.expression);
+    }
+
+    @Override
+    public Expr visitVarExpr(Variable expr) {
+        if (expr.depth >= 0) {
+            Scope scope = scope(expr.depth);
+            if (scope.constant[expr.slot]) {
+                return new Literal(scope.values[expr.slot]).typed(expr);
+            }
+        }
+        return new Variable(expr.name).typed(expr);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign expr) {
+        return new Assign(expr.name, fold(expr.value)).typed(expr);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        Expr left = fold(expr.left);
+        Expr right = fold(expr.right);
+        if (left instanceof Literal) {
+            // "or" stops at a truthy left operand, "and" at a falsy one
+            boolean truthy = Values.isTruthy(((Literal) left).val);
+            boolean stop = expr.op.type == TokenType.OR ? truthy : !truthy;
+            return stop ? left : right;
+        }
+        return new Logical(left, expr.op, right).typed(expr);
+    }
+
+    @Override
+    public Expr visitConditionalExpr(Conditional expr) {
+        Expr cond = fold(expr.cond);
+        Expr thenBranch = fold(expr.thenBranch);
+        Expr elseBranch = fold(expr.elseBranch);
+        if (cond instanceof Literal) {
+            return Values.isTruthy(((Literal) cond).val) ? thenBranch : elseBranch;
+        }
+        return new Conditional(cond, thenBranch, elseBranch).typed(expr);
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        Expr callee = fold(expr.callee);
+        ArrayList<Expr> args = new ArrayList<>();
+        for (Expr arg : expr.args) {
+            args.add(fold(arg));
+        }
+        return new Call(callee, expr.paren, args).typed(expr);
+    }
+}
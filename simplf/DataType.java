@@ -1,5 +1,7 @@
 package simplf;
 
 public enum DataType {
-    BOOL, FLOAT, CHAR, STRING, NULL;
+    BOOL, FLOAT, CHAR, STRING, NULL,
+    // what the TypeChecker gives an expression it found an error in
+    ERROR;
 }
@@ -3,7 +3,12 @@ package simplf;
 class Environment {
     protected Token token;
     protected Environment enclosing;
-    protected AssocList data;
+    protected Hamt data = Hamt.EMPTY;
+    // The global scope keeps its definitions in a hash table instead, since
+    // there can be thousands of them. Scopes inside it (blocks at the top
+    // level) still add to the trie and look in the table last.
+    protected SymbolTable table;
+    protected boolean global;
 
     Environment() {
         // a fresh, clean env
@@ -13,28 +18,46 @@ class Environment {
         this.enclosing = enclosing;
     }
 
-    Environment(AssocList assocList, Environment enclosing) {
+    Environment(Hamt data, Environment enclosing) {
         this.enclosing = enclosing;
-        this.data = assocList;
+        this.data = data;
+        this.table = enclosing.table;
+    }
+
+    static Environment global() {
+        Environment e = new Environment();
+        e.table = new SymbolTable();
+        e.global = true;
+        return e;
+    }
+
+    // The environment for a block inside this one: its definitions must not
+    // outlive it, so they cannot go into the global table.
+    Environment enter() {
+        if (!global) {
+            return this;
+        }
+        return new Environment(data, this);
     }
 
     // Return a new version of the environment that defines the variable "name"
     // and sets its initial value to "value". Take care to ensure the proper aliasing
-    // relationship. There is an association list implementation in AssocList.java.
-    // If your "define" function adds a new entry to the association list without
-    // modifying the previous list, this should yield the correct aliasing
-    // relationsip.
+    // relationship: the entry is an AssocList, and the new environment maps the
+    // name to it in a copy of the trie (see Hamt.java), so the old environment
+    // still sees its own definition of "name", if any.
     //
-    // For example, if the original environment has the association list
-    // [{name: "x", value: 1}, {name: "y", value: 2}]
-    // the new environment after calling define(..., "z", 3) should have the following
-    //  association list:
-    // [{name: "z", value: 3}, {name: "x", value: 1}, {name: "y", value: 2}]
-    // This should be constructed by building a new class of type AssocList whose "next"
-    // reference is the previous AssocList.
+    // For example, if the original environment maps
+    // {x: {value: 1}, y: {value: 2}}
+    // the new environment after calling define(..., "x", 3) maps
+    // {x: {value: 3}, y: {value: 2}}
+    // where the entry for y is shared, so assigning y in either is seen by both.
     Environment define(Token varToken, String name, Object value) {
-        AssocList newList = new AssocList(name, value, this.data);
-        Environment e = new Environment(newList, this);
+        AssocList newList = new AssocList(name, varToken.id, value, null);
+        if (global) {
+            table.put(newList);
+            return this;
+        }
+        Environment e = new Environment(data.put(newList), this);
         return e;
     }
 
@@ -44,12 +67,8 @@ class Environment {
     }
 
     Object get(Token name) {
-        AssocList cur = this.data;
-        while(cur != null && cur.next != null) {
-            if (cur.name.equals(name.literal)) { return cur; }
-            cur = cur.next;
-        }
-        if (cur == null || !cur.name.equals(name.literal)) {
+        AssocList cur = find(name.id);
+        if (cur == null) {
             Simplf.runtimeError(
                     new RuntimeError(
                         name, "Undefined Symbol: " + name.lexeme));
@@ -57,5 +76,14 @@ class Environment {
         }
         return cur;
     }
+
+    // Like get, but returns null for an undefined name instead of reporting it.
+    AssocList find(int id) {
+        AssocList cur = data.get(id);
+        if (cur == null && table != null) {
+            cur = table.find(id);
+        }
+        return cur;
+    }
 }
 
@@ -2,10 +2,26 @@ package simplf;
 
 import java.util.List;
 
-public abstract class Expr {
-    abstract <T> T accept(Visitor<T> vis);
+public abstract sealed class Expr
+        permits Expr.Binary, Expr.Unary, Expr.Literal, Expr.Grouping, Expr.Variable, Expr.Assign, Expr.Logical, Expr.Conditional, Expr.Call {
+    public abstract <T> T accept(Visitor<T> vis);
+
+    // The value can only be a number (or the expression fails): a number
+    // literal, "-", "*" and "/", and "+" on two such operands. The
+    // interpreters evaluate these as primitive doubles, see
+    // Interpreter.evaluateDouble.
+    boolean number;
+    // what the TypeChecker found, null where it did not look
+    DataType type;
+
+    // Copies the type the TypeChecker gave from, the expression this one
+    // was rebuilt from. Expr.number is structural and already set.
+    Expr typed(Expr from) {
+        type = from.type;
+        return this;
+    }
 
-    interface Visitor<T> {
+    public interface Visitor<T> {
         T visitBinary(Binary expr);
 
         T visitUnary(Unary expr);
@@ -26,92 +42,117 @@ public abstract class Expr {
 
     }
 
-    public static class Binary extends Expr {
-        final Expr left, right;
-        Token op;
+    public static final class Binary extends Expr {
+        public final Expr left, right;
+        public Token op;
+        // rewritten by the Interpreter as it learns the operand types
+        BinaryNode node = BinaryNode.UNINITIALIZED;
 
         public Binary(Expr left, Token op, Expr right) {
             this.left = left;
             this.op = op;
             this.right = right;
+            switch (op.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    number = true;
+                    break;
+                case PLUS:
+                    number = left.number && right.number;
+                    break;
+                default:
+                    break;
+            }
         }
 
         @Override
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitBinary(this);
         }
     }
 
-    public static class Unary extends Expr {
-        final Expr right;
-        Token op;
+    public static final class Unary extends Expr {
+        public final Expr right;
+        public Token op;
+        UnaryNode node = UnaryNode.UNINITIALIZED;
 
         public Unary(Token op, Expr right) {
             this.op = op;
             this.right = right;
+            this.number = op.type == TokenType.MINUS;
         }
 
         @Override
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitUnary(this);
         }
     }
 
-    public static class Literal extends Expr {
-        final Object val;
+    public static final class Literal extends Expr {
+        public final Object val;
 
         public Literal(Object val) {
             this.val = val;
+            this.number = val instanceof Double;
         }
 
         @Override
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitLiteral(this);
         }
     }
 
-    public static class Grouping extends Expr {
-        final Expr expression;
+    public static final class Grouping extends Expr {
+        public final Expr expression;
 
         public Grouping(Expr expression) {
             this.expression = expression;
+            this.number = expression.number;
         }
 
         @Override
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitGrouping(this);
         }
     }
 
-    public static class Variable extends Expr {
-        final Token name;
+    public static final class Variable extends Expr {
+        public final Token name;
+        // filled in by the Resolver; depth is -1 for an undefined name, and
+        // cell is set when the slot holds a Cell with the value
+        public int depth = -1, slot;
+        public boolean cell;
 
         public Variable(Token name) {
             this.name = name;
         }
 
         @Override
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitVarExpr(this);
         }
     }
 
-    public static class Assign extends Expr {
-        final Token name;
-        final Expr value;
+    public static final class Assign extends Expr {
+        public final Token name;
+        public final Expr value;
+        public int depth = -1, slot;
+        public boolean cell;
+
         public Assign(Token name, Expr value) {
             this.name = name;
             this.value = value;
         }
 
-        <T> T accept(Visitor<T> visitor) {
+        public <T> T accept(Visitor<T> visitor) {
             return visitor.visitAssignExpr(this);
         }
     }
 
-    public static class Logical extends Expr {
-        final Token op;
-        final Expr left, right;
+    public static final class Logical extends Expr {
+        public final Token op;
+        public final Expr left, right;
 
         public Logical(Expr left, Token op, Expr right) {
             this.left = left;
@@ -119,13 +160,13 @@ public abstract class Expr {
             this.right = right;
         }
 
-        <T> T accept(Visitor<T> visitor) {
+        public <T> T accept(Visitor<T> visitor) {
             return visitor.visitLogicalExpr(this);
         }
     }
 
-    public static class Conditional extends Expr {
-        final Expr cond, thenBranch, elseBranch;
+    public static final class Conditional extends Expr {
+        public final Expr cond, thenBranch, elseBranch;
 
         public Conditional(Expr cond, Expr thenBranch, Expr elseBranch) {
             this.cond = cond;
@@ -133,15 +174,15 @@ public abstract class Expr {
             this.elseBranch = elseBranch;
         }
 
-        <T> T accept(Visitor<T> visitor) {
+        public <T> T accept(Visitor<T> visitor) {
             return visitor.visitConditionalExpr(this);
         }
     }
 
-    public static class Call extends Expr {
-        final Expr callee;
-        Token paren;
-        final List<Expr> args;
+    public static final class Call extends Expr {
+        public final Expr callee;
+        public Token paren;
+        public final List<Expr> args;
 
         public Call(Expr callee, Token paren, List<Expr> args) {
             this.callee = callee;
@@ -149,7 +190,7 @@ public abstract class Expr {
             this.args = args;
         }
 
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitCallExpr(this);
         }
     }
@@ -0,0 +1,60 @@
+package simplf;
+
+import java.util.Arrays;
+
+public class Frame {
+    public Object[] slots;
+    public final Frame enclosing;
+
+    public Frame(int size, Frame enclosing) {
+        this.slots = new Object[size];
+        this.enclosing = enclosing;
+    }
+
+    // Walk "depth" function frames outwards. The Resolver computes the depth
+    // statically, so this never needs to compare names.
+    public Frame ancestor(int depth) {
+        Frame f = this;
+        for (int i = 0; i < depth; i++) {
+            f = f.enclosing;
+        }
+        return f;
+    }
+
+    public Object get(int depth, int slot) {
+        return ancestor(depth).slots[slot];
+    }
+
+    public void set(int depth, int slot, Object value) {
+        ancestor(depth).slots[slot] = value;
+    }
+
+    // The frame a closure of decl, declared in this frame, runs its calls
+    // under: just the variables it captures (or their cells), then the
+    // globals. Everything else this frame refers to can be collected.
+    public Frame capture(Stmt.Function decl) {
+        if (decl.captureSlots.length == 0) {
+            return ancestor(decl.globalsDepth);
+        }
+        Frame closure = new Frame(decl.captureSlots.length, ancestor(decl.globalsDepth));
+        for (int i = 0; i < decl.captureSlots.length; i++) {
+            closure.slots[i] = get(decl.captureDepths[i], decl.captureSlots[i]);
+        }
+        return closure;
+    }
+
+    // Moves the given slots' values into fresh cells.
+    public void box(int[] cells) {
+        for (int slot : cells) {
+            slots[slot] = new Cell(slots[slot]);
+        }
+    }
+
+    // The global frame outlives a single run (the REPL keeps defining new
+    // globals), so it grows instead of being sized once.
+    public void reserve(int size) {
+        if (slots.length < size) {
+            slots = Arrays.copyOf(slots, size);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package simplf;
+
+// A persistent map from interned name to AssocList entry: a hash array
+// mapped trie keyed on the symbol id, five bits per level. put copies only
+// the path to the changed entry and leaves this map as it was, so an
+// Environment made before a define keeps seeing what it saw, exactly like
+// the association list it replaces, but a lookup touches at most seven
+// nodes instead of every earlier definition.
+//
+// Each node keeps only the children that exist, in order, with a bit set
+// for each in bitmap. A child is an entry, or a node for the next five bits
+// when two ids share these. Ids are different integers, so they always come
+// apart within the 32 bits.
+final class Hamt {
+    static final Hamt EMPTY = new Hamt(0, new Object[0]);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final int bitmap;
+    private final Object[] children;
+
+    private Hamt(int bitmap, Object[] children) {
+        this.bitmap = bitmap;
+        this.children = children;
+    }
+
+    AssocList get(int id) {
+        Hamt node = this;
+        for (int shift = 0; ; shift += BITS) {
+            int bit = 1 << ((id >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object child = node.children[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (child instanceof AssocList) {
+                AssocList entry = (AssocList) child;
+                return entry.id == id ? entry : null;
+            }
+            node = (Hamt) child;
+        }
+    }
+
+    // A map with entry in place of any previous entry for its id.
+    Hamt put(AssocList entry) {
+        return put(entry, 0);
+    }
+
+    private Hamt put(AssocList entry, int shift) {
+        int bit = 1 << ((entry.id >>> shift) & MASK);
+        int index = Integer.bitCount(bitmap & (bit - 1));
+        if ((bitmap & bit) == 0) {
+            Object[] copy = new Object[children.length + 1];
+            System.arraycopy(children, 0, copy, 0, index);
+            copy[index] = entry;
+            System.arraycopy(children, index, copy, index + 1, children.length - index);
+            return new Hamt(bitmap | bit, copy);
+        }
+        Object child = children[index];
+        Object replacement;
+        if (child instanceof Hamt) {
+            replacement = ((Hamt) child).put(entry, shift + BITS);
+        } else if (((AssocList) child).id == entry.id) {
+            replacement = entry;
+        } else {
+            replacement = EMPTY.put((AssocList) child, shift + BITS).put(entry, shift + BITS);
+        }
+        Object[] copy = children.clone();
+        copy[index] = replacement;
+        return new Hamt(bitmap, copy);
+    }
+}
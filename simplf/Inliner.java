@@ -0,0 +1,665 @@
+package simplf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import simplf.Expr.Assign;
+import simplf.Expr.Binary;
+import simplf.Expr.Call;
+import simplf.Expr.Conditional;
+import simplf.Expr.Grouping;
+import simplf.Expr.Literal;
+import simplf.Expr.Logical;
+import simplf.Expr.Unary;
+import simplf.Expr.Variable;
+import simplf.Stmt.Block;
+import simplf.Stmt.Expression;
+import simplf.Stmt.For;
+import simplf.Stmt.Function;
+import simplf.Stmt.If;
+import simplf.Stmt.Print;
+import simplf.Stmt.Var;
+import simplf.Stmt.While;
+
+// Replaces calls to small helper functions with the helper's body. Runs on
+// the desugared tree, before the ConstantFolder, so literal arguments fold
+// into the inlined body.
+//
+// A call is inlined when its callee is a plain name bound to a function
+// declaration that
+//   - is declared unconditionally and never reassigned, so the name always
+//     holds that function when the call runs,
+//   - has a body that is a single expression statement of at most MAX_SIZE
+//     nodes (its value is the function's result) and does not mention the
+//     function itself, and
+//   - gets exactly as many arguments as it has parameters.
+// Every other name the body uses must resolve to the same variable at the
+// call site as it does inside the function. Then the call site reaches the
+// same frames the closure would have, so closures behave as before.
+//
+// Arguments are still evaluated once, left to right, before the body: a
+// literal argument is substituted for its parameter, any other is assigned to
+// a fresh variable first, "(p1 = a1, (p2 = a2, body))". Those variables are
+// declared just before the statement that contains the call.
+//
+// Scoping follows the Resolver: a name is visible from its declaration to the
+// end of the block, branch, loop body or function body it is declared in.
+// Slots are never reused here, so a (scope, slot) pair is one variable.
+public class Inliner implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private static final int MAX_SIZE = 24;
+
+    private static class Scope {
+        final Scope enclosing;
+        // the function whose body this is, null for the globals
+        final Function owner;
+        Environment names;
+        int size;
+        // inlinable functions declared here, by slot
+        final Map<Integer, Inlinable> functions = new HashMap<>();
+
+        Scope(Scope enclosing, Function owner) {
+            this.enclosing = enclosing;
+            this.owner = owner;
+            this.names = enclosing == null ? Environment.global() : new Environment();
+        }
+
+        int declare(Token name) {
+            int slot = size++;
+            names = names.define(name, name.lexeme, slot);
+            return slot;
+        }
+    }
+
+    // A variable: the scope that declares it and its slot there.
+    private static class Binding {
+        final Scope scope;
+        final int slot;
+
+        Binding(Scope scope, int slot) {
+            this.scope = scope;
+            this.slot = slot;
+        }
+
+        boolean sameAs(Binding other) {
+            return other != null && scope == other.scope && slot == other.slot;
+        }
+    }
+
+    // A function that calls may be replaced with, and the variable each free
+    // name of its body refers to.
+    private static class Inlinable {
+        final Function function;
+        final Expr body;
+        final Map<Integer, Binding> free;
+
+        Inlinable(Function function, Map<Integer, Binding> free) {
+            this.function = function;
+            this.body = ((Expression) function.body.get(0)).expr;
+            this.free = free;
+        }
+    }
+
+    private final boolean inlineGlobals;
+    // slots that some Assign writes, by the owner of their scope
+    private final Map<Function, BitSet> assigned = new IdentityHashMap<>();
+    private final BitSet assignedGlobals = new BitSet();
+    private final Set<Function> unconditional =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Scope scope;
+    private List<Stmt> pending = new ArrayList<>();
+    private int temps;
+
+    public Inliner(boolean inlineGlobals) {
+        this.inlineGlobals = inlineGlobals;
+    }
+
+    public List<Stmt> inline(List<Stmt> stmts) {
+        scope = new Scope(null, null);
+        new Scan().scan(stmts);
+
+        scope = new Scope(null, null);
+        return statements(stmts);
+    }
+
+    private Binding lookup(int id) {
+        for (Scope s = scope; s != null; s = s.enclosing) {
+            AssocList entry = s.names.find(id);
+            if (entry != null) {
+                return new Binding(s, (Integer) entry.value);
+            }
+        }
+        return null;
+    }
+
+    private BitSet assigned(Scope s) {
+        return s.owner == null
+            ? assignedGlobals
+            : assigned.computeIfAbsent(s.owner, k -> new BitSet());
+    }
+
+    // First pass: which variables are ever assigned, and which functions are
+    // declared outside of any if/while/for of their enclosing function.
+    private class Scan implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private int conditional;
+
+        void scan(List<Stmt> stmts) {
+            for (Stmt stmt : stmts) {
+                stmt.accept(this);
+            }
+        }
+
+        private void scanConditional(Stmt stmt) {
+            conditional++;
+            scanScoped(stmt);
+            conditional--;
+        }
+
+        // blocks, branches and loop bodies end the names declared in them
+        private void scanScoped(Stmt stmt) {
+            Environment names = scope.names;
+            scope.names = names.enter();
+            stmt.accept(this);
+            scope.names = names;
+        }
+
+        @Override
+        public Void visitPrintStmt(Print stmt) {
+            return stmt.expr.accept(this);
+        }
+
+        @Override
+        public Void visitExprStmt(Expression stmt) {
+            return stmt.expr.accept(this);
+        }
+
+        @Override
+        public Void visitVarStmt(Var stmt) {
+            stmt.initializer.accept(this);
+            scope.declare(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Block stmt) {
+            Environment names = scope.names;
+            scope.names = names.enter();
+            scan(stmt.statements);
+            scope.names = names;
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(If stmt) {
+            stmt.cond.accept(this);
+            scanConditional(stmt.thenBranch);
+            if (stmt.elseBranch != null) {
+                scanConditional(stmt.elseBranch);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(While stmt) {
+            conditional++;
+            stmt.cond.accept(this);
+            scanScoped(stmt.body);
+            conditional--;
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(For stmt) {
+            stmt.init.accept(this);
+            conditional++;
+            stmt.cond.accept(this);
+            stmt.incr.accept(this);
+            scanScoped(stmt.body);
+            conditional--;
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Function stmt) {
+            scope.declare(stmt.name);
+            if (conditional == 0) {
+                unconditional.add(stmt);
+            }
+            int enclosingConditional = conditional;
+            conditional = 0;
+            scope = new Scope(scope, stmt);
+            for (Token param : stmt.params) {
+                scope.declare(param);
+            }
+            scan(stmt.body);
+            scope = scope.enclosing;
+            conditional = enclosingConditional;
+            return null;
+        }
+
+        @Override
+        public Void visitBinary(Binary expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitUnary(Unary expr) {
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitLiteral(Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitGrouping(Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitVarExpr(Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Assign expr) {
+            expr.value.accept(this);
+            Binding binding = lookup(expr.name.id);
+            if (binding != null) {
+                assigned(binding.scope).set(binding.slot);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Logical expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitConditionalExpr(Conditional expr) {
+            expr.cond.accept(this);
+            expr.thenBranch.accept(this);
+            return expr.elseBranch.accept(this);
+        }
+
+        @Override
+        public Void visitCallExpr(Call expr) {
+            expr.callee.accept(this);
+            for (Expr arg : expr.args) {
+                arg.accept(this);
+            }
+            return null;
+        }
+    }
+
+    // Rewrites a statement list, placing the declarations of any argument
+    // variables before the statement that needed them.
+    private List<Stmt> statements(List<Stmt> stmts) {
+        ArrayList<Stmt> ret = new ArrayList<>();
+        for (Stmt stmt : stmts) {
+            Stmt rewritten = stmt.accept(this);
+            ret.addAll(pending);
+            pending.clear();
+            ret.add(rewritten);
+        }
+        return ret;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Print stmt) {
+        return new Print(stmt.expr.accept(this));
+    }
+
+    @Override
+    public Stmt visitExprStmt(Expression stmt) {
+        return new Expression(stmt.expr.accept(this));
+    }
+
+    @Override
+    public Stmt visitVarStmt(Var stmt) {
+        Expr initializer = stmt.initializer.accept(this);
+        scope.declare(stmt.name);
+        return new Var(stmt.name, initializer, stmt.type);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Block stmt) {
+        Environment names = scope.names;
+        scope.names = names.enter();
+        Block block = new Block(statements(stmt.statements));
+        scope.names = names;
+        return block;
+    }
+
+    private Stmt scoped(Stmt stmt) {
+        Environment names = scope.names;
+        scope.names = names.enter();
+        Stmt rewritten = stmt.accept(this);
+        scope.names = names;
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitIfStmt(If stmt) {
+        Expr cond = stmt.cond.accept(this);
+        Stmt thenBranch = scoped(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : scoped(stmt.elseBranch);
+        return new If(cond, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(While stmt) {
+        return new While(stmt.cond.accept(this), scoped(stmt.body));
+    }
+
+    @Override
+    public Stmt visitForStmt(For stmt) {
+        return new For(stmt.init.accept(this), stmt.cond.accept(this),
+                stmt.incr.accept(this), scoped(stmt.body));
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Function stmt) {
+        int slot = scope.declare(stmt.name);
+        Scope enclosing = scope;
+        List<Stmt> enclosingPending = pending;
+        scope = new Scope(enclosing, stmt);
+        pending = new ArrayList<>();
+        try {
+            for (Token param : stmt.params) {
+                scope.declare(param);
+            }
+            Inlinable inlinable = inlinable(stmt, new Binding(enclosing, slot));
+            if (inlinable != null) {
+                enclosing.functions.put(slot, inlinable);
+            }
+            List<Stmt> body = statements(stmt.body);
+            return new Function(stmt.name, stmt.params, body, stmt.type, stmt.param_types);
+        } finally {
+            scope = enclosing;
+            pending = enclosingPending;
+        }
+    }
+
+    // Called with the function's own scope current, before its body, so free
+    // names resolve the way the Resolver resolves them inside the body.
+    private Inlinable inlinable(Function stmt, Binding self) {
+        if (stmt.body.size() != 1 || !(stmt.body.get(0) instanceof Expression)
+                || !unconditional.contains(stmt)
+                || assigned(self.scope).get(self.slot)
+                || (self.scope.owner == null && !inlineGlobals)) {
+            return null;
+        }
+        Expr body = ((Expression) stmt.body.get(0)).expr;
+        if (size(body) > MAX_SIZE) {
+            return null;
+        }
+        Map<Integer, Binding> free = new HashMap<>();
+        for (int id : freeNames(body, stmt)) {
+            Binding binding = lookup(id);
+            // no recursion: the body must not refer to the function
+            if (self.sameAs(binding)) {
+                return null;
+            }
+            free.put(id, binding);
+        }
+        return new Inlinable(stmt, free);
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        Expr callee = expr.callee.accept(this);
+        ArrayList<Expr> args = new ArrayList<>();
+        for (Expr arg : expr.args) {
+            args.add(arg.accept(this));
+        }
+        Expr inlined = inlineCall(expr, callee, args);
+        return inlined != null ? inlined : new Call(callee, expr.paren, args).typed(expr);
+    }
+
+    private Expr inlineCall(Call call, Expr callee, List<Expr> args) {
+        while (callee instanceof Grouping) {
+            callee = ((Grouping) callee).expression;
+        }
+        if (!(callee instanceof Variable)) {
+            return null;
+        }
+        Binding binding = lookup(((Variable) callee).name.id);
+        if (binding == null) {
+            return null;
+        }
+        Inlinable inlinable = binding.scope.functions.get(binding.slot);
+        if (inlinable == null || inlinable.function.params.size() != args.size()) {
+            return null;
+        }
+        Function f = inlinable.function;
+        Expr body = inlinable.body;
+
+        // every free name must mean the same variable here as in the body
+        for (Map.Entry<Integer, Binding> entry : inlinable.free.entrySet()) {
+            Binding here = lookup(entry.getKey());
+            if (entry.getValue() == null ? here != null : !entry.getValue().sameAs(here)) {
+                return null;
+            }
+        }
+
+        Map<Integer, Expr> params = new HashMap<>();
+        Set<Integer> assignedParams = assignedNames(body);
+        List<Expr> setup = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            Token param = f.params.get(i);
+            Expr arg = args.get(i);
+            if (arg instanceof Literal && !assignedParams.contains(param.id)) {
+                params.put(param.id, arg);
+                continue;
+            }
+            Token temp = new Token(TokenType.IDENTIFIER, param.lexeme + "$" + temps,
+                    param.lexeme + "$" + temps, param.line, param.col);
+            temps++;
+            DataType type = f.param_types == null ? null : f.param_types.get(i);
+            pending.add(new Var(temp, new Literal(null), type));
+            params.put(param.id, new Variable(temp));
+            setup.add(new Assign(temp, arg));
+        }
+
+        Expr result = new Substitution(params).copy(body);
+        Token comma = new Token(TokenType.COMMA, ",", null, call.paren.line, call.paren.col);
+        for (int i = setup.size() - 1; i >= 0; i--) {
+            result = new Binary(setup.get(i), comma, result);
+        }
+        return result;
+    }
+
+    private static Set<Integer> freeNames(Expr body, Function f) {
+        Set<Integer> names = new HashSet<>();
+        collectNames(body, names, false);
+        for (Token param : f.params) {
+            names.remove(param.id);
+        }
+        return names;
+    }
+
+    private static Set<Integer> assignedNames(Expr body) {
+        Set<Integer> names = new HashSet<>();
+        collectNames(body, names, true);
+        return names;
+    }
+
+    // Names read or assigned in expr (only assigned ones if assignedOnly).
+    private static void collectNames(Expr expr, Set<Integer> names, boolean assignedOnly) {
+        if (expr instanceof Variable) {
+            if (!assignedOnly) {
+                names.add(((Variable) expr).name.id);
+            }
+        } else if (expr instanceof Assign) {
+            names.add(((Assign) expr).name.id);
+            collectNames(((Assign) expr).value, names, assignedOnly);
+        } else if (expr instanceof Binary) {
+            collectNames(((Binary) expr).left, names, assignedOnly);
+            collectNames(((Binary) expr).right, names, assignedOnly);
+        } else if (expr instanceof Unary) {
+            collectNames(((Unary) expr).right, names, assignedOnly);
+        } else if (expr instanceof Grouping) {
+            collectNames(((Grouping) expr).expression, names, assignedOnly);
+        } else if (expr instanceof Logical) {
+            collectNames(((Logical) expr).left, names, assignedOnly);
+            collectNames(((Logical) expr).right, names, assignedOnly);
+        } else if (expr instanceof Conditional) {
+            collectNames(((Conditional) expr).cond, names, assignedOnly);
+            collectNames(((Conditional) expr).thenBranch, names, assignedOnly);
+            collectNames(((Conditional) expr).elseBranch, names, assignedOnly);
+        } else if (expr instanceof Call) {
+            collectNames(((Call) expr).callee, names, assignedOnly);
+            for (Expr arg : ((Call) expr).args) {
+                collectNames(arg, names, assignedOnly);
+            }
+        }
+    }
+
+    private static int size(Expr expr) {
+        if (expr instanceof Assign) {
+            return 1 + size(((Assign) expr).value);
+        } else if (expr instanceof Binary) {
+            return 1 + size(((Binary) expr).left) + size(((Binary) expr).right);
+        } else if (expr instanceof Unary) {
+            return 1 + size(((Unary) expr).right);
+        } else if (expr instanceof Grouping) {
+            return size(((Grouping) expr).expression);
+        } else if (expr instanceof Logical) {
+            return 1 + size(((Logical) expr).left) + size(((Logical) expr).right);
+        } else if (expr instanceof Conditional) {
+            return 1 + size(((Conditional) expr).cond) + size(((Conditional) expr).thenBranch)
+                + size(((Conditional) expr).elseBranch);
+        } else if (expr instanceof Call) {
+            int size = 1 + size(((Call) expr).callee);
+            for (Expr arg : ((Call) expr).args) {
+                size += size(arg);
+            }
+            return size;
+        }
+        return 1;
+    }
+
+    // A fresh copy of an inlined body with its parameters replaced.
+    private static class Substitution implements Expr.Visitor<Expr> {
+        private final Map<Integer, Expr> params;
+
+        Substitution(Map<Integer, Expr> params) {
+            this.params = params;
+        }
+
+        Expr copy(Expr expr) {
+            return expr.accept(this);
+        }
+
+        @Override
+        public Expr visitBinary(Binary expr) {
+            return new Binary(copy(expr.left), expr.op, copy(expr.right)).typed(expr);
+        }
+
+        @Override
+        public Expr visitUnary(Unary expr) {
+            return new Unary(expr.op, copy(expr.right)).typed(expr);
+        }
+
+        @Override
+        public Expr visitLiteral(Literal expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitGrouping(Grouping expr) {
+            return new Grouping(copy(expr.expression)).typed(expr);
+        }
+
+        @Override
+        public Expr visitVarExpr(Variable expr) {
+            Expr param = params.get(expr.name.id);
+            if (param instanceof Variable) {
+                return new Variable(((Variable) param).name).typed(expr);
+            }
+            return param != null ? param : new Variable(expr.name).typed(expr);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Assign expr) {
+            // only parameters bound to a variable can be assigned
+            Expr param = params.get(expr.name.id);
+            Token name = param != null ? ((Variable) param).name : expr.name;
+            return new Assign(name, copy(expr.value)).typed(expr);
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Logical expr) {
+            return new Logical(copy(expr.left), expr.op, copy(expr.right)).typed(expr);
+        }
+
+        @Override
+        public Expr visitConditionalExpr(Conditional expr) {
+            return new Conditional(copy(expr.cond), copy(expr.thenBranch), copy(expr.elseBranch))
+                .typed(expr);
+        }
+
+        @Override
+        public Expr visitCallExpr(Call expr) {
+            ArrayList<Expr> args = new ArrayList<>();
+            for (Expr arg : expr.args) {
+                args.add(copy(arg));
+            }
+            return new Call(copy(expr.callee), expr.paren, args).typed(expr);
+        }
+    }
+
+    @Override
+    public Expr visitBinary(Binary expr) {
+        return new Binary(expr.left.accept(this), expr.op, expr.right.accept(this)).typed(expr);
+    }
+
+    @Override
+    public Expr visitUnary(Unary expr) {
+        return new Unary(expr.op, expr.right.accept(this)).typed(expr);
+    }
+
+    @Override
+    public Expr visitLiteral(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGrouping(Grouping expr) {
+        return new Grouping(expr.expression.accept(this)).typed(expr);
+    }
+
+    @Override
+    public Expr visitVarExpr(Variable expr) {
+        return new Variable(expr.name).typed(expr);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign expr) {
+        return new Assign(expr.name, expr.value.accept(this)).typed(expr);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        return new Logical(expr.left.accept(this), expr.op, expr.right.accept(this)).typed(expr);
+    }
+
+    @Override
+    public Expr visitConditionalExpr(Conditional expr) {
+        return new Conditional(expr.cond.accept(this),
+            expr.thenBranch.accept(this),
+            expr.elseBranch.accept(this)).typed(expr);
+    }
+}
@@ -1,17 +1,17 @@
 package simplf;
 
 import java.util.List;
-import java.util.ArrayList;
 
 import simplf.Stmt.For;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
-    public Environment globals = new Environment();
-    private Environment environment = globals;
+    public Frame globals = new Frame(0, null);
+    private Frame frame = globals;
+    private final TailCall tailCall = new TailCall();
 
     Interpreter() {}
-    Interpreter(Environment closing) {
-        this.environment = closing;
+    Interpreter(Frame closing) {
+        this.frame = closing;
     }
 
     public void interpret(List<Stmt> stmts) {
@@ -33,7 +33,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     @Override
     public Object visitPrintStmt(Stmt.Print stmt) {
         Object val = evaluate(stmt.expr);
-        System.out.println(stringify(val));
+        Output.println(val);
         return null;
     }
 
@@ -41,10 +41,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     public Void visitVarStmt(Stmt.Var stmt) {
         //System.out.println("init var: " + stmt.name.lexeme);
         Object val = evaluate(stmt.initializer);
-        environment = environment.define(
-                stmt.name,
-                stmt.name.lexeme,
-                val);
+        frame.slots[stmt.slot] = stmt.cell ? new Cell(val) : val;
         return null;
     }
 
@@ -89,23 +86,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitFunctionStmt(Stmt.Function stmt) {
-        SimplfFunction f = new SimplfFunction(stmt, new Environment(), stmt.type);
-        environment = environment.define(stmt.name, stmt.name.lexeme, f);
-        f.closure = environment;
-        for (Token t : stmt.params) {
-            environment = environment.define(t, t.lexeme, null);
-        }
-        return f;
+        return SimplfFunction.define(stmt, frame);
     }
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
         Object left = evaluate(expr.left);
         if (expr.op.type == TokenType.OR) {
-            if (isTruthy(left))
+            if (Values.isTruthy(left))
                 return left;
         } else {
-            if (!isTruthy(left))
+            if (!Values.isTruthy(left))
                 return left;
         }
         return evaluate(expr.right);
@@ -113,67 +104,110 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitBinary(Expr.Binary expr) {
+        if (expr.number) {
+            return evaluateDouble(expr);
+        }
+        if (expr.left.type == DataType.FLOAT && expr.right.type == DataType.FLOAT
+                && comparison(expr.op)) {
+            return compareDoubles(expr);
+        }
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return expr.node.execute(expr, left, right);
+    }
 
-        switch (expr.op.type) {
-            case PLUS:
-                if (left instanceof String || right instanceof String) {
-                    return stringify(left) + stringify(right);
-                }
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
-                throw new RuntimeError(expr.op, "Addition operation not supported for operands.");
-            case MINUS:
-                checkNumbers(expr.op, left, right);
-                return (double) left - (double) right;
-            case STAR:
-                checkNumbers(expr.op, left, right);
-                return (double) left * (double) right;
-            case SLASH:
-                checkNumbers(expr.op, left, right);
-                if ((double) right == 0) {
-                    throw new RuntimeError(expr.op, "Cannot divide by zero.");
-                }
-                return (double) left / (double) right;
+    static boolean comparison(Token op) {
+        switch (op.type) {
             case GREATER:
-                checkNumbers(expr.op, left, right);
-                return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumbers(expr.op, left, right);
-                return (double) left >= (double) right;
             case LESS:
-                checkNumbers(expr.op, left, right);
-                return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumbers(expr.op, left, right);
-                return (double) left <= (double) right;
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case COMMA:
-                return right;
+                return true;
             default:
-                break;
+                return false;
         }
-        return null;
+    }
+
+    // A comparison the TypeChecker found to be between two floats, made
+    // without going through the node. Operands are still checked the way
+    // evaluateDouble checks them: nil, functions passed as values and what
+    // calling them returns are let into float variables.
+    private Object compareDoubles(Expr.Binary expr) {
+        boolean numbers = true;
+        double x, y;
+        Object left = null, right = null;
+        if (expr.left.number) {
+            x = evaluateDouble(expr.left);
+        } else {
+            left = evaluate(expr.left);
+            numbers = left instanceof Double;
+            x = numbers ? (double) left : 0;
+        }
+        if (expr.right.number) {
+            y = evaluateDouble(expr.right);
+        } else {
+            right = evaluate(expr.right);
+            numbers &= right instanceof Double;
+            y = right instanceof Double ? (double) right : 0;
+        }
+        if (!numbers) {
+            return expr.node.execute(expr,
+                    expr.left.number ? x : left, expr.right.number ? y : right);
+        }
+        return Values.compare(expr.op, x, y);
     }
 
     @Override
     public Object visitUnary(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
-        switch (expr.op.type) {
-            case MINUS:
-                checkNumber(expr.op, right);
+        if (expr.number) {
+            return evaluateDouble(expr);
+        }
+        return expr.node.execute(expr, evaluate(expr.right));
+    }
+
+    // The value of an Expr.number expression as a primitive, so the
+    // operators nested in it do not box their results. Operands that are
+    // not Expr.number themselves (variables, calls) are checked; anything
+    // but a Double is passed with the other operand to the operator's node,
+    // which reports the error.
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            return (double) literal.val;
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return evaluateDouble(grouping.expression);
+        } else if (expr instanceof Expr.Unary unary) {
+            if (unary.right.number) {
+                return -evaluateDouble(unary.right);
+            }
+            Object right = evaluate(unary.right);
+            if (right instanceof Double) {
                 return -(double) right;
-            case BANG:
-                return !isTruthy(right);
-            default:
-                break;
+            }
+            return (double) unary.node.execute(unary, right);
         }
-        return null;
+        Expr.Binary binary = (Expr.Binary) expr;
+        boolean numbers = true;
+        double x, y;
+        Object left = null, right = null;
+        if (binary.left.number) {
+            x = evaluateDouble(binary.left);
+        } else {
+            left = evaluate(binary.left);
+            numbers = left instanceof Double;
+            x = numbers ? (double) left : 0;
+        }
+        if (binary.right.number) {
+            y = evaluateDouble(binary.right);
+        } else {
+            right = evaluate(binary.right);
+            numbers &= right instanceof Double;
+            y = right instanceof Double ? (double) right : 0;
+        }
+        if (!numbers) {
+            return (double) binary.node.execute(binary,
+                    binary.left.number ? x : left, binary.right.number ? y : right);
+        }
+        return Values.arithmetic(binary.op, x, y);
     }
 
     @Override
@@ -188,35 +222,98 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitVarExpr(Expr.Variable expr) {
-        AssocList e = (AssocList) environment.get(expr.name);
-        return e.value;
+        if (expr.depth < 0) {
+            throw undefined(expr.name);
+        }
+        Object val = frame.get(expr.depth, expr.slot);
+        return expr.cell ? ((Cell) val).value : val;
     }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        SimplfFunction f = (SimplfFunction) evaluate(expr.callee);
-        List<Object> args = new ArrayList();
-        for (Expr a : expr.args) {
-            args.add(evaluate(a));
+        SimplfCallable f = callee(evaluate(expr.callee), expr.paren, expr.args.size());
+        try {
+            return f.call(this, arguments(f, expr.args));
+        } catch (StackOverflowError e) {
+            // the tree walker recurses on the Java stack; the vm engine does not
+            throw new RuntimeError(expr.paren, "Stack overflow, try --engine=vm.");
         }
-        Interpreter i = new Interpreter(f.closure);
-        Object ret = f.call(i, args);
-        return ret;
     }
 
+    // The value called with argc arguments, if it can be. The TypeChecker
+    // does not know what a float variable holds, so calls through one are
+    // checked here, with the VM's messages.
+    static SimplfCallable callee(Object value, Token paren, int argc) {
+        if (!(value instanceof SimplfCallable)) {
+            throw new RuntimeError(paren, "Can only call functions.");
+        }
+        SimplfCallable f = (SimplfCallable) value;
+        if (argc > f.arity()) {
+            throw new RuntimeError(paren,
+                "Expected " + f.arity() + " arguments but got " + argc + ".");
+        }
+        return f;
+    }
+
+    private Frame arguments(SimplfCallable f, List<Expr> args) {
+        Frame callFrame = f.enter();
+        for (int i = 0; i < args.size(); i++) {
+            callFrame.slots[i] = evaluate(args.get(i));
+        }
+        return callFrame;
+    }
+
+    // -Dsimplf.visitor=true goes back to dispatching through accept(), for
+    // comparison (see bench/simplf/DispatchBench.java). It is read once, so
+    // HotSpot folds the test away.
+    static final boolean VISITOR = Boolean.getBoolean("simplf.visitor");
+
+    // Expr and Stmt are sealed and every node class is final, so each test
+    // below is a single compare of the object's class, and the visit method
+    // it picks is a direct call HotSpot can inline. accept() is a virtual
+    // call that sees every node type at every site, and so never inlines.
     private Object evaluate(Expr expr) {
-        return expr.accept(this);
+        if (VISITOR) {
+            return expr.accept(this);
+        }
+        if (expr instanceof Expr.Variable variable) {
+            return visitVarExpr(variable);
+        } else if (expr instanceof Expr.Literal literal) {
+            return literal.val;
+        } else if (expr instanceof Expr.Binary binary) {
+            return visitBinary(binary);
+        } else if (expr instanceof Expr.Call call) {
+            return visitCallExpr(call);
+        } else if (expr instanceof Expr.Assign assign) {
+            return visitAssignExpr(assign);
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return evaluate(grouping.expression);
+        } else if (expr instanceof Expr.Unary unary) {
+            return visitUnary(unary);
+        } else if (expr instanceof Expr.Logical logical) {
+            return visitLogicalExpr(logical);
+        } else {
+            return visitConditionalExpr((Expr.Conditional) expr);
+        }
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object val = evaluate(expr.value);
-        environment.assign(expr.name, val);
+        if (expr.depth < 0) {
+            throw undefined(expr.name);
+        }
+        if (expr.cell) {
+            ((Cell) frame.get(expr.depth, expr.slot)).value = val;
+        } else {
+            frame.set(expr.depth, expr.slot, val);
+        }
         return val;
     }
 
     @Override
     public Object visitConditionalExpr(Expr.Conditional expr) {
-        if (isTruthy(evaluate(expr.cond))) {
+        if (Values.isTruthy(evaluate(expr.cond))) {
             return evaluate(expr.thenBranch);
         } else {
             return evaluate(expr.elseBranch);
@@ -224,49 +321,53 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     }
 
     public Object execute(Stmt stmt) {
-        return stmt.accept(this);
-    }
-
-    private boolean isTruthy(Object object) {
-        if (object == null) {
-            return false;
+        if (VISITOR) {
+            return stmt.accept(this);
         }
-        if (object instanceof Boolean) {
-            return (boolean) object;
+        if (stmt instanceof Stmt.Expression expression) {
+            return evaluate(expression.expr);
+        } else if (stmt instanceof Stmt.Var var) {
+            return visitVarStmt(var);
+        } else if (stmt instanceof Stmt.Block block) {
+            return visitBlockStmt(block);
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            return visitIfStmt(ifStmt);
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            return visitWhileStmt(whileStmt);
+        } else if (stmt instanceof Stmt.Print print) {
+            return visitPrintStmt(print);
+        } else if (stmt instanceof For forStmt) {
+            return visitForStmt(forStmt);
+        } else {
+            return visitFunctionStmt((Stmt.Function) stmt);
         }
-        return true;
-    }
-
-    private boolean isEqual(Object a, Object b) {
-        if (a == null)
-            return b == null;
-        return a.equals(b);
-    }
-
-    private void checkNumber(Token op, Object object) {
-        if (object instanceof Double)
-            return;
-        throw new RuntimeError(op, "Operand must be a number");
-    }
-
-    private void checkNumbers(Token op, Object a, Object b) {
-        if (a instanceof Double && b instanceof Double)
-            return;
-        throw new RuntimeError(op, "Operand must be numbers");
     }
 
-    private String stringify(Object object) {
-        if (object == null)
-            return "nil";
-        if (object instanceof Double) {
-            String num = object.toString();
-            if (num.endsWith(".0")) {
-                num = num.substring(0, num.length() - 2);
+    // Run a function body in its call frame and return the value of the last
+    // statement. A call in tail position is only set up, and comes back as
+    // the TailCall for SimplfFunction.call to make.
+    Object executeBody(Stmt.Function decl, Frame callFrame) {
+        Frame enclosing = frame;
+        frame = callFrame;
+        try {
+            List<Stmt> body = decl.body;
+            int end = decl.tailCall == null ? body.size() : body.size() - 1;
+            Object ret = new Object();
+            for (int i = 0; i < end; i++) {
+                ret = execute(body.get(i));
             }
-            return num;
+            if (decl.tailCall != null) {
+                SimplfCallable f = callee(evaluate(decl.tailCall.callee),
+                        decl.tailCall.paren, decl.tailCall.args.size());
+                return tailCall.set(f, arguments(f, decl.tailCall.args));
+            }
+            return ret;
+        } finally {
+            frame = enclosing;
         }
-        return object.toString();
     }
 
-
+    private RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Undefined Symbol: " + name.lexeme);
+    }
 }
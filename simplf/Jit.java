@@ -0,0 +1,544 @@
+package simplf;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+import simplf.Expr.Assign;
+import simplf.Expr.Binary;
+import simplf.Expr.Call;
+import simplf.Expr.Conditional;
+import simplf.Expr.Grouping;
+import simplf.Expr.Literal;
+import simplf.Expr.Logical;
+import simplf.Expr.Unary;
+import simplf.Expr.Variable;
+import simplf.Stmt.Block;
+import simplf.Stmt.Expression;
+import simplf.Stmt.For;
+import simplf.Stmt.Function;
+import simplf.Stmt.If;
+import simplf.Stmt.Print;
+import simplf.Stmt.Var;
+import simplf.Stmt.While;
+
+// Second tier for hot functions. Once a SimplfFunction has been called
+// THRESHOLD times its body is turned into a tree of method handles of type
+// (Frame)Object, which HotSpot compiles and inlines like ordinary Java code.
+//
+// The tree walker runs first, so by the time a body is compiled its operator
+// nodes have specialized themselves to the types they saw. Those types become
+// guarded fast paths in the compiled code; when a guard fails (or an operator
+// never ran) the handle calls back into the interpreter's node for that
+// expression, so the result and error reporting stay the same.
+final class Jit implements Expr.Visitor<MethodHandle>, Stmt.Visitor<MethodHandle> {
+    static final int THRESHOLD = 1000;
+
+    // runs the callees that are not compiled yet
+    private static final Interpreter interpreter = new Interpreter();
+    private static final TailCall tailCall = new TailCall();
+
+    private Jit() {}
+
+    // Returns a (Frame)Object handle that runs the body on a frame whose
+    // parameter slots are bound, or null if the body cannot be compiled.
+    static MethodHandle compile(Function decl) {
+        try {
+            return new Jit().body(decl);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static Object run(MethodHandle code, Frame frame) {
+        try {
+            return (Object) code.invokeExact(frame);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private MethodHandle compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private MethodHandle compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // A function returns the value of its last statement. A call in tail
+    // position is only set up and returned as a TailCall, like the
+    // Interpreter does.
+    private MethodHandle body(Function decl) {
+        List<Stmt> stmts = decl.body;
+        if (stmts.isEmpty()) {
+            return NEW_OBJECT;
+        }
+        int last = stmts.size() - 1;
+        MethodHandle result = decl.tailCall != null
+            ? call(TAIL_CALL, decl.tailCall)
+            : compile(stmts.get(last));
+        for (int i = last - 1; i >= 0; i--) {
+            result = sequence(compile(stmts.get(i)), result);
+        }
+        return result;
+    }
+
+    @Override
+    public MethodHandle visitExprStmt(Expression stmt) {
+        return compile(stmt.expr);
+    }
+
+    @Override
+    public MethodHandle visitPrintStmt(Print stmt) {
+        return apply(ignoreFrame(PRINT), compile(stmt.expr));
+    }
+
+    @Override
+    public MethodHandle visitVarStmt(Var stmt) {
+        return apply(MethodHandles.insertArguments(stmt.cell ? STORE_CELL : STORE_LOCAL, 0, stmt.slot),
+                compile(stmt.initializer));
+    }
+
+    @Override
+    public MethodHandle visitBlockStmt(Block stmt) {
+        MethodHandle result = NEW_OBJECT;
+        for (int i = stmt.statements.size() - 1; i >= 0; i--) {
+            result = sequence(compile(stmt.statements.get(i)), result);
+        }
+        return result;
+    }
+
+    @Override
+    public MethodHandle visitIfStmt(If stmt) {
+        // an if statement's value is its condition
+        MethodHandle elseBranch = stmt.elseBranch == null
+            ? MethodHandles.insertArguments(INTERPRET, 0, (Stmt) null)
+            : compile(stmt.elseBranch);
+        MethodHandle branch = MethodHandles.guardWithTest(IS_TRUE,
+                thenReturnFirst(compile(stmt.thenBranch)),
+                thenReturnFirst(elseBranch));
+        return MethodHandles.foldArguments(branch, compile(stmt.cond));
+    }
+
+    @Override
+    public MethodHandle visitWhileStmt(While stmt) {
+        MethodHandle loop = MethodHandles.whileLoop(null,
+                MethodHandles.filterReturnValue(compile(stmt.cond), IS_TRUE),
+                discardResult(compile(stmt.body)));
+        return MethodHandles.foldArguments(NIL, loop);
+    }
+
+    @Override
+    public MethodHandle visitForStmt(For stmt) {
+        MethodHandle loop = MethodHandles.whileLoop(null,
+                MethodHandles.filterReturnValue(compile(stmt.cond), IS_TRUE),
+                discardResult(sequence(compile(stmt.body), compile(stmt.incr))));
+        return MethodHandles.foldArguments(
+                MethodHandles.foldArguments(NIL, loop),
+                discardResult(compile(stmt.init)));
+    }
+
+    @Override
+    public MethodHandle visitFunctionStmt(Function stmt) {
+        return MethodHandles.insertArguments(DEFINE, 0, stmt);
+    }
+
+    @Override
+    public MethodHandle visitBinary(Binary expr) {
+        MethodHandle op = MethodHandles.insertArguments(BINARY, 0, expr);
+        switch (expr.op.type) {
+            case EQUAL_EQUAL:
+                op = EQUAL;
+                break;
+            case BANG_EQUAL:
+                op = NOT_EQUAL;
+                break;
+            case COMMA:
+                op = MethodHandles.dropArguments(MethodHandles.identity(Object.class), 0, Object.class);
+                break;
+            default:
+                // Expr.number operators and comparisons of typed floats are
+                // evaluated without going through their node, so theirs may
+                // never have run
+                if (expr.node != BinaryNode.GENERIC
+                        && (expr.number || expr.node != BinaryNode.UNINITIALIZED
+                            || expr.left.type == DataType.FLOAT && expr.right.type == DataType.FLOAT)) {
+                    op = specialize(expr, op);
+                }
+                break;
+        }
+        return apply(ignoreFrame(op), compile(expr.left), compile(expr.right));
+    }
+
+    // The node only leaves the generic state for number operands, or for a
+    // string on either side of "+".
+    private static MethodHandle specialize(Binary expr, MethodHandle fallback) {
+        MethodHandle fast;
+        switch (expr.op.type) {
+            case PLUS:
+                return MethodHandles.guardWithTest(NUMBERS, ADD,
+                        MethodHandles.guardWithTest(ANY_STRING, CONCAT, fallback));
+            case MINUS:         fast = SUBTRACT; break;
+            case STAR:          fast = MULTIPLY; break;
+            case SLASH:         fast = MethodHandles.insertArguments(DIVIDE, 0, expr.op); break;
+            case GREATER:       fast = GREATER; break;
+            case GREATER_EQUAL: fast = GREATER_EQUAL; break;
+            case LESS:          fast = LESS; break;
+            case LESS_EQUAL:    fast = LESS_EQUAL; break;
+            default:
+                return fallback;
+        }
+        return MethodHandles.guardWithTest(NUMBERS, fast, fallback);
+    }
+
+    @Override
+    public MethodHandle visitUnary(Unary expr) {
+        MethodHandle op = MethodHandles.insertArguments(UNARY, 0, expr);
+        if (expr.op.type == TokenType.BANG) {
+            op = NOT;
+        } else if (expr.op.type == TokenType.MINUS && expr.node != UnaryNode.GENERIC) {
+            op = MethodHandles.guardWithTest(NUMBER, NEGATE, op);
+        }
+        return apply(ignoreFrame(op), compile(expr.right));
+    }
+
+    @Override
+    public MethodHandle visitLiteral(Literal expr) {
+        return MethodHandles.dropArguments(
+                MethodHandles.constant(Object.class, expr.val), 0, Frame.class);
+    }
+
+    @Override
+    public MethodHandle visitGrouping(Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public MethodHandle visitVarExpr(Variable expr) {
+        if (expr.depth < 0) {
+            return MethodHandles.insertArguments(UNDEFINED, 0, expr.name);
+        }
+        if (expr.cell) {
+            return MethodHandles.insertArguments(GET_CELL, 0, expr.depth, expr.slot);
+        }
+        if (expr.depth == 0) {
+            return MethodHandles.insertArguments(GET_LOCAL, 0, expr.slot);
+        }
+        return MethodHandles.insertArguments(GET, 0, expr.depth, expr.slot);
+    }
+
+    @Override
+    public MethodHandle visitAssignExpr(Assign expr) {
+        MethodHandle store;
+        if (expr.depth < 0) {
+            store = MethodHandles.dropArguments(
+                    MethodHandles.insertArguments(UNDEFINED, 0, expr.name), 0, Object.class);
+        } else if (expr.cell) {
+            store = MethodHandles.insertArguments(SET_CELL, 0, expr.depth, expr.slot);
+        } else if (expr.depth == 0) {
+            store = MethodHandles.insertArguments(SET_LOCAL, 0, expr.slot);
+        } else {
+            store = MethodHandles.insertArguments(SET, 0, expr.depth, expr.slot);
+        }
+        return apply(store, compile(expr.value));
+    }
+
+    @Override
+    public MethodHandle visitLogicalExpr(Logical expr) {
+        MethodHandle keepLeft = MethodHandles.dropArguments(
+                MethodHandles.identity(Object.class), 1, Frame.class);
+        MethodHandle right = MethodHandles.dropArguments(compile(expr.right), 0, Object.class);
+        MethodHandle rest = expr.op.type == TokenType.OR
+            ? MethodHandles.guardWithTest(TRUTHY, keepLeft, right)
+            : MethodHandles.guardWithTest(TRUTHY, right, keepLeft);
+        return MethodHandles.foldArguments(rest, compile(expr.left));
+    }
+
+    @Override
+    public MethodHandle visitConditionalExpr(Conditional expr) {
+        MethodHandle branch = MethodHandles.guardWithTest(TRUTHY,
+                MethodHandles.dropArguments(compile(expr.thenBranch), 0, Object.class),
+                MethodHandles.dropArguments(compile(expr.elseBranch), 0, Object.class));
+        return MethodHandles.foldArguments(branch, compile(expr.cond));
+    }
+
+    @Override
+    public MethodHandle visitCallExpr(Call expr) {
+        return call(CALL, expr);
+    }
+
+    // Evaluates the callee and arguments and passes them to the (paren,
+    // callee, Object[] args) helper.
+    private MethodHandle call(MethodHandle helper, Call expr) {
+        int argc = expr.args.size();
+        MethodHandle call = MethodHandles.insertArguments(helper, 0, expr.paren)
+            .asCollector(Object[].class, argc);
+        MethodHandle[] operands = new MethodHandle[argc + 1];
+        operands[0] = compile(expr.callee);
+        for (int i = 0; i < argc; i++) {
+            operands[i + 1] = compile(expr.args.get(i));
+        }
+        return apply(ignoreFrame(call), operands);
+    }
+
+    // Combinators. Every compiled expression and statement is (Frame)Object.
+
+    // Evaluates the operands left to right and passes their values, followed
+    // by the frame, to op.
+    private static MethodHandle apply(MethodHandle op, MethodHandle... operands) {
+        MethodHandle result = op;
+        for (int i = operands.length - 1; i >= 0; i--) {
+            // move parameter i to the front, where foldArguments fills it in
+            Class<?>[] params = new Class<?>[i + 2];
+            int[] reorder = new int[i + 2];
+            params[0] = Object.class;
+            for (int j = 0; j < i; j++) {
+                params[j + 1] = Object.class;
+                reorder[j] = j + 1;
+            }
+            params[i + 1] = Frame.class;
+            reorder[i] = 0;
+            reorder[i + 1] = i + 1;
+            result = MethodHandles.permuteArguments(result,
+                    MethodType.methodType(Object.class, params), reorder);
+            result = MethodHandles.foldArguments(result,
+                    MethodHandles.dropArguments(operands[i], 0, Arrays.copyOf(params, i, Class[].class)));
+        }
+        return result;
+    }
+
+    private static MethodHandle ignoreFrame(MethodHandle op) {
+        return MethodHandles.dropArguments(op, op.type().parameterCount(), Frame.class);
+    }
+
+    private static MethodHandle discardResult(MethodHandle h) {
+        return h.asType(MethodType.methodType(void.class, Frame.class));
+    }
+
+    // Runs first for its side effects, then second for the result.
+    private static MethodHandle sequence(MethodHandle first, MethodHandle second) {
+        return MethodHandles.foldArguments(second, discardResult(first));
+    }
+
+    // (Object v, Frame f) that runs stmt on f and returns v.
+    private static MethodHandle thenReturnFirst(MethodHandle stmt) {
+        return MethodHandles.foldArguments(
+                MethodHandles.dropArguments(MethodHandles.identity(Object.class), 1, Frame.class),
+                MethodHandles.dropArguments(discardResult(stmt), 0, Object.class));
+    }
+
+    // Runtime helpers the compiled code calls into.
+
+    private static Object getLocal(int slot, Frame frame) {
+        return frame.slots[slot];
+    }
+
+    private static Object get(int depth, int slot, Frame frame) {
+        return frame.get(depth, slot);
+    }
+
+    private static Object setLocal(int slot, Object value, Frame frame) {
+        frame.slots[slot] = value;
+        return value;
+    }
+
+    private static Object set(int depth, int slot, Object value, Frame frame) {
+        frame.set(depth, slot, value);
+        return value;
+    }
+
+    private static Object storeLocal(int slot, Object value, Frame frame) {
+        frame.slots[slot] = value;
+        return null;
+    }
+
+    private static Object getCell(int depth, int slot, Frame frame) {
+        return ((Cell) frame.get(depth, slot)).value;
+    }
+
+    private static Object setCell(int depth, int slot, Object value, Frame frame) {
+        ((Cell) frame.get(depth, slot)).value = value;
+        return value;
+    }
+
+    private static Object storeCell(int slot, Object value, Frame frame) {
+        frame.slots[slot] = new Cell(value);
+        return null;
+    }
+
+    private static Object undefined(Token name, Frame frame) {
+        throw new RuntimeError(name, "Undefined Symbol: " + name.lexeme);
+    }
+
+    private static Object print(Object value) {
+        Output.println(value);
+        return null;
+    }
+
+    private static Object newObject(Frame frame) {
+        return new Object();
+    }
+
+    private static Object nil(Frame frame) {
+        return null;
+    }
+
+    private static Object define(Function decl, Frame frame) {
+        return SimplfFunction.define(decl, frame);
+    }
+
+    private static Frame arguments(SimplfCallable f, Object[] args) {
+        Frame frame = f.enter();
+        System.arraycopy(args, 0, frame.slots, 0, args.length);
+        return frame;
+    }
+
+    private static Object call(Token paren, Object callee, Object[] args) {
+        SimplfCallable f = Interpreter.callee(callee, paren, args.length);
+        return f.call(interpreter, arguments(f, args));
+    }
+
+    private static Object tailCall(Token paren, Object callee, Object[] args) {
+        SimplfCallable f = Interpreter.callee(callee, paren, args.length);
+        return tailCall.set(f, arguments(f, args));
+    }
+
+    // Statements the compiler leaves to the tree walker.
+    private static Object interpret(Stmt stmt, Frame frame) {
+        return new Interpreter(frame).execute(stmt);
+    }
+
+    private static Object binary(Binary expr, Object left, Object right) {
+        return expr.node.execute(expr, left, right);
+    }
+
+    private static Object unary(Unary expr, Object right) {
+        return expr.node.execute(expr, right);
+    }
+
+    private static boolean isTrue(Object cond) {
+        return cond.equals(true);
+    }
+
+    private static boolean truthy(Object value) {
+        return Values.isTruthy(value);
+    }
+
+    private static boolean numbers(Object left, Object right) {
+        return left instanceof Double && right instanceof Double;
+    }
+
+    private static boolean number(Object right) {
+        return right instanceof Double;
+    }
+
+    private static boolean anyString(Object left, Object right) {
+        return Values.isString(left) || Values.isString(right);
+    }
+
+    private static Object add(Object left, Object right) {
+        return (double) left + (double) right;
+    }
+
+    private static Object concat(Object left, Object right) {
+        return Values.concat(left, right);
+    }
+
+    private static Object subtract(Object left, Object right) {
+        return (double) left - (double) right;
+    }
+
+    private static Object multiply(Object left, Object right) {
+        return (double) left * (double) right;
+    }
+
+    private static Object divide(Token op, Object left, Object right) {
+        if ((double) right == 0) {
+            throw new RuntimeError(op, "Cannot divide by zero.");
+        }
+        return (double) left / (double) right;
+    }
+
+    private static Object greater(Object left, Object right) {
+        return (double) left > (double) right;
+    }
+
+    private static Object greaterEqual(Object left, Object right) {
+        return (double) left >= (double) right;
+    }
+
+    private static Object less(Object left, Object right) {
+        return (double) left < (double) right;
+    }
+
+    private static Object lessEqual(Object left, Object right) {
+        return (double) left <= (double) right;
+    }
+
+    private static Object equal(Object left, Object right) {
+        return Values.isEqual(left, right);
+    }
+
+    private static Object notEqual(Object left, Object right) {
+        return !Values.isEqual(left, right);
+    }
+
+    private static Object negate(Object right) {
+        return -(double) right;
+    }
+
+    private static Object not(Object right) {
+        return !Values.isTruthy(right);
+    }
+
+    private static MethodHandle helper(String name, Class<?> ret, Class<?>... params) {
+        try {
+            return MethodHandles.lookup().findStatic(Jit.class, name,
+                    MethodType.methodType(ret, params));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final MethodHandle GET_LOCAL = helper("getLocal", Object.class, int.class, Frame.class);
+    private static final MethodHandle GET = helper("get", Object.class, int.class, int.class, Frame.class);
+    private static final MethodHandle SET_LOCAL = helper("setLocal", Object.class, int.class, Object.class, Frame.class);
+    private static final MethodHandle SET = helper("set", Object.class, int.class, int.class, Object.class, Frame.class);
+    private static final MethodHandle STORE_LOCAL = helper("storeLocal", Object.class, int.class, Object.class, Frame.class);
+    private static final MethodHandle GET_CELL = helper("getCell", Object.class, int.class, int.class, Frame.class);
+    private static final MethodHandle SET_CELL = helper("setCell", Object.class, int.class, int.class, Object.class, Frame.class);
+    private static final MethodHandle STORE_CELL = helper("storeCell", Object.class, int.class, Object.class, Frame.class);
+    private static final MethodHandle UNDEFINED = helper("undefined", Object.class, Token.class, Frame.class);
+    private static final MethodHandle PRINT = helper("print", Object.class, Object.class);
+    private static final MethodHandle NEW_OBJECT = helper("newObject", Object.class, Frame.class);
+    private static final MethodHandle NIL = helper("nil", Object.class, Frame.class);
+    private static final MethodHandle DEFINE = helper("define", Object.class, Function.class, Frame.class);
+    private static final MethodHandle CALL = helper("call", Object.class, Token.class, Object.class, Object[].class);
+    private static final MethodHandle TAIL_CALL = helper("tailCall", Object.class, Token.class, Object.class, Object[].class);
+    private static final MethodHandle INTERPRET = helper("interpret", Object.class, Stmt.class, Frame.class);
+    private static final MethodHandle BINARY = helper("binary", Object.class, Binary.class, Object.class, Object.class);
+    private static final MethodHandle UNARY = helper("unary", Object.class, Unary.class, Object.class);
+    private static final MethodHandle IS_TRUE = helper("isTrue", boolean.class, Object.class);
+    private static final MethodHandle TRUTHY = helper("truthy", boolean.class, Object.class);
+    private static final MethodHandle NUMBERS = helper("numbers", boolean.class, Object.class, Object.class);
+    private static final MethodHandle NUMBER = helper("number", boolean.class, Object.class);
+    private static final MethodHandle ANY_STRING = helper("anyString", boolean.class, Object.class, Object.class);
+    private static final MethodHandle ADD = helper("add", Object.class, Object.class, Object.class);
+    private static final MethodHandle CONCAT = helper("concat", Object.class, Object.class, Object.class);
+    private static final MethodHandle SUBTRACT = helper("subtract", Object.class, Object.class, Object.class);
+    private static final MethodHandle MULTIPLY = helper("multiply", Object.class, Object.class, Object.class);
+    private static final MethodHandle DIVIDE = helper("divide", Object.class, Token.class, Object.class, Object.class);
+    private static final MethodHandle GREATER = helper("greater", Object.class, Object.class, Object.class);
+    private static final MethodHandle GREATER_EQUAL = helper("greaterEqual", Object.class, Object.class, Object.class);
+    private static final MethodHandle LESS = helper("less", Object.class, Object.class, Object.class);
+    private static final MethodHandle LESS_EQUAL = helper("lessEqual", Object.class, Object.class, Object.class);
+    private static final MethodHandle EQUAL = helper("equal", Object.class, Object.class, Object.class);
+    private static final MethodHandle NOT_EQUAL = helper("notEqual", Object.class, Object.class, Object.class);
+    private static final MethodHandle NEGATE = helper("negate", Object.class, Object.class);
+    private static final MethodHandle NOT = helper("not", Object.class, Object.class);
+}
@@ -0,0 +1,524 @@
+package simplf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import simplf.Expr.Assign;
+import simplf.Expr.Binary;
+import simplf.Expr.Call;
+import simplf.Expr.Conditional;
+import simplf.Expr.Grouping;
+import simplf.Expr.Literal;
+import simplf.Expr.Logical;
+import simplf.Expr.Unary;
+import simplf.Expr.Variable;
+import simplf.Stmt.Block;
+import simplf.Stmt.Expression;
+import simplf.Stmt.For;
+import simplf.Stmt.Function;
+import simplf.Stmt.If;
+import simplf.Stmt.Print;
+import simplf.Stmt.Var;
+import simplf.Stmt.While;
+
+// Loop-invariant code motion for while and for loops: an operator in the
+// loop condition whose operands the loop never changes is computed once,
+// into a fresh variable, just before the loop starts.
+//
+// A variable is invariant when no Assign, var or fun inside the loop writes
+// it. A call inside the loop could write any variable a closure can reach, so
+// then only locals of a function that defines no closures stay invariant.
+//
+// The condition runs at the start of every iteration, so its first
+// evaluation is exactly where the hoisted code runs: the value is the same,
+// and an error such as a division by zero is raised at the same point with
+// the same token. That only holds while everything the condition evaluates
+// before the hoisted operator is free of effects and errors and the operator
+// is not behind an "and", "or" or "?:"; otherwise only operators that cannot
+// fail ("==", "!=", "!") are hoisted. The body is never run before the
+// condition, so nothing is hoisted out of it.
+public class LoopHoister implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    private final Map<Function, BitSet> written = new IdentityHashMap<>();
+    private final BitSet writtenGlobals = new BitSet();
+    // enclosing function bodies, innermost last; null is the global scope
+    private final List<Function> functions = new ArrayList<>();
+    private int temps;
+    // blocks made here to carry a loop and the declarations in front of it
+    private final Set<Block> wrappers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // state of the loop whose condition is being rewritten
+    private boolean loopCalls;
+    private boolean exact;
+    private List<Stmt> hoisted;
+
+    public LoopHoister() {}
+
+    public List<Stmt> hoist(List<Stmt> stmts) {
+        // a throwaway resolution gives every variable its (depth, slot)
+        new Resolver(false).resolve(stmts);
+        functions.add(null);
+        List<Stmt> ret = statements(stmts);
+        functions.clear();
+        return ret;
+    }
+
+    private Function function(int depth) {
+        return functions.get(functions.size() - 1 - depth);
+    }
+
+    private BitSet written(Function owner) {
+        return owner == null ? writtenGlobals : written.computeIfAbsent(owner, k -> new BitSet());
+    }
+
+    // Statement lists take the hoisted declarations in front of the loop;
+    // anywhere else the loop is wrapped in a block with them.
+    private List<Stmt> statements(List<Stmt> stmts) {
+        ArrayList<Stmt> ret = new ArrayList<>();
+        for (Stmt stmt : stmts) {
+            Stmt rewritten = stmt.accept(this);
+            if (wrappers.remove(rewritten)) {
+                ret.addAll(((Block) rewritten).statements);
+            } else {
+                ret.add(rewritten);
+            }
+        }
+        return ret;
+    }
+
+    private Block wrap(List<Stmt> statements) {
+        Block block = new Block(statements);
+        wrappers.add(block);
+        return block;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Print stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExprStmt(Expression stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Var stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Block stmt) {
+        return new Block(statements(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitIfStmt(If stmt) {
+        return new If(stmt.cond, block(stmt.thenBranch),
+            stmt.elseBranch == null ? null : block(stmt.elseBranch));
+    }
+
+    private Stmt block(Stmt stmt) {
+        Stmt rewritten = stmt.accept(this);
+        wrappers.remove(rewritten);
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(While stmt) {
+        List<Stmt> temps = analyze(stmt.cond, stmt.body, null);
+        Expr cond = condition(stmt.cond);
+        While loop = new While(cond, block(stmt.body));
+        if (temps.isEmpty()) {
+            return loop;
+        }
+        temps.add(loop);
+        return wrap(temps);
+    }
+
+    @Override
+    public Stmt visitForStmt(For stmt) {
+        List<Stmt> temps = analyze(stmt.cond, stmt.body, stmt.incr);
+        Expr cond = condition(stmt.cond);
+        Expr init = stmt.init;
+        // the initializer runs before the first condition, so the hoisted
+        // values are computed right after it
+        for (Stmt temp : temps) {
+            Var var = (Var) temp;
+            init = new Binary(init, comma(var.name), new Assign(var.name, var.initializer));
+        }
+        For loop = new For(init, cond, stmt.incr, block(stmt.body));
+        if (temps.isEmpty()) {
+            return loop;
+        }
+        List<Stmt> decls = new ArrayList<>();
+        for (Stmt temp : temps) {
+            Var var = (Var) temp;
+            decls.add(new Var(var.name, new Literal(null), var.type));
+        }
+        decls.add(loop);
+        return wrap(decls);
+    }
+
+    private static Token comma(Token at) {
+        return new Token(TokenType.COMMA, ",", null, at.line, at.col);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Function stmt) {
+        functions.add(stmt);
+        try {
+            return new Function(stmt.name, stmt.params, statements(stmt.body),
+                stmt.type, stmt.param_types);
+        } finally {
+            functions.remove(functions.size() - 1);
+        }
+    }
+
+    // Collects what the loop writes and prepares the rewrite of its
+    // condition. Returns the list the hoisted declarations go into.
+    private List<Stmt> analyze(Expr cond, Stmt body, Expr incr) {
+        written.clear();
+        writtenGlobals.clear();
+        Writes writes = new Writes();
+        cond.accept(writes);
+        body.accept(writes);
+        if (incr != null) {
+            incr.accept(writes);
+        }
+        loopCalls = writes.calls;
+        exact = true;
+        hoisted = new ArrayList<>();
+        return hoisted;
+    }
+
+    private boolean invariant(Variable expr) {
+        if (expr.depth < 0) {
+            return false;
+        }
+        Function owner = function(expr.depth);
+        if (written(owner).get(expr.slot)) {
+            return false;
+        }
+        return !loopCalls || (expr.depth == 0 && owner != null && !owner.hasClosures);
+    }
+
+    private boolean invariant(Expr expr) {
+        if (expr instanceof Literal) {
+            return true;
+        } else if (expr instanceof Variable) {
+            return invariant((Variable) expr);
+        } else if (expr instanceof Grouping) {
+            return invariant(((Grouping) expr).expression);
+        } else if (expr instanceof Binary) {
+            return invariant(((Binary) expr).left) && invariant(((Binary) expr).right);
+        } else if (expr instanceof Unary) {
+            return invariant(((Unary) expr).right);
+        } else if (expr instanceof Logical) {
+            return invariant(((Logical) expr).left) && invariant(((Logical) expr).right);
+        } else if (expr instanceof Conditional) {
+            return invariant(((Conditional) expr).cond)
+                && invariant(((Conditional) expr).thenBranch)
+                && invariant(((Conditional) expr).elseBranch);
+        }
+        return false;
+    }
+
+    // Whether evaluating an effect-free expression can raise a runtime error.
+    private static boolean canFail(Expr expr) {
+        if (expr instanceof Literal) {
+            return false;
+        } else if (expr instanceof Variable) {
+            return ((Variable) expr).depth < 0;
+        } else if (expr instanceof Grouping) {
+            return canFail(((Grouping) expr).expression);
+        } else if (expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            return canFail(binary.op.type) || canFail(binary.left) || canFail(binary.right);
+        } else if (expr instanceof Unary) {
+            return canFail(((Unary) expr).op.type) || canFail(((Unary) expr).right);
+        } else if (expr instanceof Logical) {
+            return canFail(((Logical) expr).left) || canFail(((Logical) expr).right);
+        } else if (expr instanceof Conditional) {
+            return canFail(((Conditional) expr).cond)
+                || canFail(((Conditional) expr).thenBranch)
+                || canFail(((Conditional) expr).elseBranch);
+        }
+        return true;
+    }
+
+    // Operators that check the types of their operands.
+    private static boolean canFail(TokenType op) {
+        switch (op) {
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+            case COMMA:
+            case BANG:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    // Rewrites the loop condition, in evaluation order, replacing hoistable
+    // operators with reads of their new variables.
+    private Expr condition(Expr cond) {
+        return hoistable(cond, true);
+    }
+
+    private Expr hoistable(Expr expr, boolean unconditional) {
+        boolean compound = !(expr instanceof Literal || expr instanceof Variable
+            || expr instanceof Grouping);
+        if (compound && invariant(expr) && ((exact && unconditional) || !canFail(expr))) {
+            Token name = new Token(TokenType.IDENTIFIER, "loop$" + temps, "loop$" + temps,
+                    lineOf(expr), 0);
+            temps++;
+            hoisted.add(new Var(name, expr, null));
+            return new Variable(name).typed(expr);
+        }
+
+        if (expr instanceof Grouping) {
+            return new Grouping(hoistable(((Grouping) expr).expression, unconditional)).typed(expr);
+        } else if (expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            Expr left = hoistable(binary.left, unconditional);
+            Expr right = hoistable(binary.right, unconditional);
+            if (canFail(binary.op.type)) {
+                exact = false;
+            }
+            return new Binary(left, binary.op, right).typed(binary);
+        } else if (expr instanceof Unary) {
+            Unary unary = (Unary) expr;
+            Expr right = hoistable(unary.right, unconditional);
+            if (canFail(unary.op.type)) {
+                exact = false;
+            }
+            return new Unary(unary.op, right).typed(unary);
+        } else if (expr instanceof Logical) {
+            Logical logical = (Logical) expr;
+            Expr left = hoistable(logical.left, unconditional);
+            Expr right = hoistable(logical.right, false);
+            return new Logical(left, logical.op, right).typed(logical);
+        } else if (expr instanceof Conditional) {
+            Conditional conditional = (Conditional) expr;
+            Expr cond = hoistable(conditional.cond, unconditional);
+            Expr thenBranch = hoistable(conditional.thenBranch, false);
+            Expr elseBranch = hoistable(conditional.elseBranch, false);
+            return new Conditional(cond, thenBranch, elseBranch).typed(conditional);
+        } else if (expr instanceof Assign) {
+            Assign assign = (Assign) expr;
+            Expr value = hoistable(assign.value, unconditional);
+            exact = false;
+            return new Assign(assign.name, value).typed(assign);
+        } else if (expr instanceof Call) {
+            Call call = (Call) expr;
+            Expr callee = hoistable(call.callee, unconditional);
+            ArrayList<Expr> args = new ArrayList<>();
+            for (Expr arg : call.args) {
+                args.add(hoistable(arg, unconditional));
+            }
+            exact = false;
+            return new Call(callee, call.paren, args).typed(call);
+        } else if (expr instanceof Variable) {
+            if (((Variable) expr).depth < 0) {
+                exact = false;
+            }
+            return new Variable(((Variable) expr).name).typed(expr);
+        }
+        return expr;
+    }
+
+    private static int lineOf(Expr expr) {
+        if (expr instanceof Binary) {
+            return ((Binary) expr).op.line;
+        } else if (expr instanceof Unary) {
+            return ((Unary) expr).op.line;
+        } else if (expr instanceof Logical) {
+            return ((Logical) expr).op.line;
+        }
+        return 0;
+    }
+
+    // Records the variables a loop writes and whether it makes any calls.
+    // Depths are relative to the function the loop is in.
+    private class Writes implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        boolean calls;
+        private int nesting;
+
+        private void write(int depth, int slot) {
+            if (depth >= nesting) {
+                written(function(depth - nesting)).set(slot);
+            }
+        }
+
+        @Override
+        public Void visitPrintStmt(Print stmt) {
+            return stmt.expr.accept(this);
+        }
+
+        @Override
+        public Void visitExprStmt(Expression stmt) {
+            return stmt.expr.accept(this);
+        }
+
+        @Override
+        public Void visitVarStmt(Var stmt) {
+            stmt.initializer.accept(this);
+            write(nesting, stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Block stmt) {
+            for (Stmt s : stmt.statements) {
+                s.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(If stmt) {
+            stmt.cond.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) {
+                stmt.elseBranch.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(While stmt) {
+            stmt.cond.accept(this);
+            return stmt.body.accept(this);
+        }
+
+        @Override
+        public Void visitForStmt(For stmt) {
+            stmt.init.accept(this);
+            stmt.cond.accept(this);
+            stmt.incr.accept(this);
+            return stmt.body.accept(this);
+        }
+
+        @Override
+        public Void visitFunctionStmt(Function stmt) {
+            write(nesting, stmt.slot);
+            nesting++;
+            for (Stmt s : stmt.body) {
+                s.accept(this);
+            }
+            nesting--;
+            return null;
+        }
+
+        @Override
+        public Void visitBinary(Binary expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitUnary(Unary expr) {
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitLiteral(Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitGrouping(Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitVarExpr(Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Assign expr) {
+            expr.value.accept(this);
+            if (expr.depth >= 0) {
+                write(expr.depth, expr.slot);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Logical expr) {
+            expr.left.accept(this);
+            return expr.right.accept(this);
+        }
+
+        @Override
+        public Void visitConditionalExpr(Conditional expr) {
+            expr.cond.accept(this);
+            expr.thenBranch.accept(this);
+            return expr.elseBranch.accept(this);
+        }
+
+        @Override
+        public Void visitCallExpr(Call expr) {
+            // a call made by a function defined in the loop only runs if that
+            // function is called from the loop, which is itself a call
+            calls = true;
+            expr.callee.accept(this);
+            for (Expr arg : expr.args) {
+                arg.accept(this);
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public Expr visitBinary(Binary expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnary(Unary expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteral(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGrouping(Grouping expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitVarExpr(Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitConditionalExpr(Conditional expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        return expr;
+    }
+}
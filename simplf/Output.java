@@ -0,0 +1,34 @@
+package simplf;
+
+// Where print statements write to. System.out locks and flushes on every
+// println, so lines are collected here and written out in batches: when the
+// buffer passes the limit, before anything goes to System.err (so output and
+// diagnostics stay in order), before the REPL prompts and when the program
+// exits. A limit of 0 writes every line as soon as it is printed.
+public class Output {
+    public static final int DEFAULT_LIMIT = 8192;
+
+    private static final StringBuilder buffer = new StringBuilder();
+    private static int limit = DEFAULT_LIMIT;
+
+    private Output() {}
+
+    static void setLimit(int chars) {
+        limit = chars;
+    }
+
+    public static void println(Object value) {
+        Values.append(buffer, value).append('\n');
+        if (buffer.length() > limit) {
+            flush();
+        }
+    }
+
+    public static void flush() {
+        if (buffer.length() > 0) {
+            System.out.print(buffer);
+            buffer.setLength(0);
+        }
+        System.out.flush();
+    }
+}
@@ -0,0 +1,445 @@
+package simplf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import simplf.Expr.Assign;
+import simplf.Expr.Binary;
+import simplf.Expr.Call;
+import simplf.Expr.Conditional;
+import simplf.Expr.Grouping;
+import simplf.Expr.Literal;
+import simplf.Expr.Logical;
+import simplf.Expr.Unary;
+import simplf.Expr.Variable;
+import simplf.Stmt.Block;
+import simplf.Stmt.Expression;
+import simplf.Stmt.For;
+import simplf.Stmt.Function;
+import simplf.Stmt.If;
+import simplf.Stmt.Print;
+import simplf.Stmt.Var;
+import simplf.Stmt.While;
+
+// Annotates every variable reference with the (depth, slot) pair the
+// Interpreter uses to find it in its Frame chain. Each function body gets one
+// frame; depth counts how many frames out the definition lives.
+//
+// Names are tracked with the same persistent Environment the interpreter used
+// to run on, so a function only sees the definitions that precede it and a
+// redefinition gets a fresh slot instead of overwriting the old one. That keeps
+// the aliasing behaviour of Environment.define without any lookups at runtime.
+//
+// Blocks, if branches and loop bodies are scopes too, but they share the frame
+// of their function: leaving one drops its names by going back to the
+// Environment from before it, and hands its slots to the next declarations.
+// Closures capture the variables of top-level blocks like locals, since the
+// global frame's slots are reused too.
+//
+// Closures do not keep the frame they were made in. A call's frame encloses
+// the closure's own frame, which holds only the variables the function (or a
+// function inside it) refers to, and that one encloses the globals. So inside
+// a function depth 0 is a local, depth 1 a captured variable and depth 2 a
+// global; a function that captures nothing runs right under the globals, at
+// depth 1. A captured variable that is ever assigned, or a function that
+// refers to itself, would be copied before it changes, so its slot holds a
+// Cell that the closures share instead.
+//
+// The optimization passes only need to tell variables apart, so they resolve
+// with captures off: depth then counts enclosing function bodies.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    // A declared variable. Whether it needs a Cell is only known once every
+    // reference to it has been seen, so they are collected here.
+    private static class Binding {
+        final int slot;
+        // the Var or Function, or null for a parameter
+        final Stmt declaration;
+        // declared at the top level outside any block: read in place by
+        // everyone, never captured
+        final boolean global;
+        boolean captured, assigned, self;
+        final List<Expr> uses = new ArrayList<>();
+
+        Binding(int slot, Stmt declaration, boolean global) {
+            this.slot = slot;
+            this.declaration = declaration;
+            this.global = global;
+        }
+
+        boolean cell() {
+            return captured && (assigned || self);
+        }
+    }
+
+    private static class Scope {
+        final Scope enclosing;
+        // the function whose body this is, null for the globals
+        final Function function;
+        Environment names;
+        // next free slot, and the most slots in use at once
+        int next, size;
+        // in the global scope, only those of the blocks being resolved
+        final List<Binding> bindings = new ArrayList<>();
+        // blocks being resolved, in the global scope
+        int blocks;
+        // what the closure captures, in order, and where each comes from
+        final List<Binding> captures = new ArrayList<>();
+        final List<Integer> captureDepths = new ArrayList<>();
+        final List<Integer> captureSlots = new ArrayList<>();
+        // references to globals and functions declared here, whose distance
+        // to the globals depends on whether there are any captures
+        final List<Expr> globalUses = new ArrayList<>();
+        final List<Function> functions = new ArrayList<>();
+
+        Scope(Scope enclosing, Function function) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.names = enclosing == null ? Environment.global() : new Environment();
+        }
+    }
+
+    private final boolean captures;
+    // The global scope lives as long as the resolver so the REPL can refer to
+    // definitions from earlier lines.
+    private final Scope globals = new Scope(null, null);
+    private Scope scope = globals;
+
+    Resolver() {
+        this(true);
+    }
+
+    Resolver(boolean captures) {
+        this.captures = captures;
+    }
+
+    public void resolve(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            resolve(stmt);
+        }
+    }
+
+    // Number of slots the global frame needs to run everything resolved so far.
+    int globalSlots() {
+        return globals.size;
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private int declare(Token name, Stmt declaration) {
+        boolean global = scope == globals && scope.blocks == 0;
+        Binding binding = new Binding(scope.next++, declaration, global);
+        scope.size = Math.max(scope.size, scope.next);
+        scope.names = scope.names.define(name, name.lexeme, binding);
+        if (!global) {
+            scope.bindings.add(binding);
+        }
+        return binding.slot;
+    }
+
+    // Returns the binding of name, with {depth, slot} from the current scope
+    // in location, or null when the name is not defined yet. Uses of globals
+    // are not kept: they are never captured. A variable declared in a
+    // top-level block or loop body is captured like a local, so closures
+    // made in different iterations each keep their own.
+    private Binding lookup(Token name, Expr use, int[] location) {
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.enclosing) {
+            AssocList entry = s.names.find(name.id);
+            if (entry != null) {
+                Binding binding = (Binding) entry.value;
+                if (!binding.global) {
+                    binding.uses.add(use);
+                }
+                if (depth == 0 || !captures) {
+                    location[0] = depth;
+                    location[1] = binding.slot;
+                } else if (binding.global) {
+                    location[0] = 2;
+                    location[1] = binding.slot;
+                    scope.globalUses.add(use);
+                } else {
+                    location[0] = 1;
+                    location[1] = capture(scope, binding, s);
+                }
+                return binding;
+            }
+            depth++;
+        }
+        return null;
+    }
+
+    // The index of binding, declared in owner, among the captures of the
+    // function whose body is from. Every function in between captures it too.
+    private int capture(Scope from, Binding binding, Scope owner) {
+        int index = from.captures.indexOf(binding);
+        if (index >= 0) {
+            return index;
+        }
+        binding.captured = true;
+        if (binding.declaration == from.function) {
+            // the function refers to itself before its slot is filled in
+            binding.self = true;
+        }
+        if (from.enclosing == owner) {
+            from.captureDepths.add(0);
+            from.captureSlots.add(binding.slot);
+        } else {
+            from.captureDepths.add(1);
+            from.captureSlots.add(capture(from.enclosing, binding, owner));
+        }
+        from.captures.add(binding);
+        return from.captures.size() - 1;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        resolve(stmt.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitExprStmt(Expression stmt) {
+        resolve(stmt.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        // the initializer still sees any previous definition of the name
+        resolve(stmt.initializer);
+        stmt.slot = declare(stmt.name, stmt);
+        return null;
+    }
+
+    private void resolveScoped(List<Stmt> stmts) {
+        Environment names = scope.names;
+        int next = scope.next;
+        int bindings = scope.bindings.size();
+        scope.names = names.enter();
+        if (scope == globals) {
+            scope.blocks++;
+        }
+        resolve(stmts);
+        if (scope == globals) {
+            // nothing can refer to the block's variables any more
+            scope.blocks--;
+            List<Binding> block = scope.bindings.subList(bindings, scope.bindings.size());
+            cells(block);
+            block.clear();
+        }
+        scope.names = names;
+        scope.next = next;
+    }
+
+    private void resolveScoped(Stmt stmt) {
+        resolveScoped(List.of(stmt));
+    }
+
+    @Override
+    public Void visitBlockStmt(Block stmt) {
+        resolveScoped(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        resolve(stmt.cond);
+        resolveScoped(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            resolveScoped(stmt.elseBranch);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        resolve(stmt.cond);
+        resolveScoped(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(For stmt) {
+        resolve(stmt.init);
+        resolve(stmt.cond);
+        resolve(stmt.incr);
+        resolveScoped(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        // declared before the body so recursive calls resolve
+        stmt.slot = declare(stmt.name, stmt);
+        if (scope.function != null) {
+            scope.function.hasClosures = true;
+        }
+        if (scope == globals) {
+            stmt.globalsDepth = 0;
+        } else {
+            stmt.globalsDepth = 2;
+            scope.functions.add(stmt);
+        }
+
+        Scope enclosing = scope;
+        scope = new Scope(enclosing, stmt);
+        try {
+            // parameters take the first slots so calls can bind them by index
+            for (Token param : stmt.params) {
+                declare(param, null);
+            }
+            for (Stmt s : stmt.body) {
+                resolve(s);
+            }
+            stmt.frameSize = scope.size;
+            stmt.tailCall = tailCall(stmt.body);
+            stmt.captureDepths = toArray(scope.captureDepths);
+            stmt.captureSlots = toArray(scope.captureSlots);
+            if (scope.captures.isEmpty()) {
+                for (Function function : scope.functions) {
+                    function.globalsDepth = 1;
+                }
+                for (Expr use : scope.globalUses) {
+                    if (use instanceof Variable) {
+                        ((Variable) use).depth = 1;
+                    } else {
+                        ((Assign) use).depth = 1;
+                    }
+                }
+            }
+            cells(stmt, scope);
+        } finally {
+            scope = enclosing;
+        }
+        return null;
+    }
+
+    // All references to the function's variables have been seen: mark the
+    // ones that live in a Cell.
+    private static void cells(Function stmt, Scope scope) {
+        stmt.cellParams = toArray(cells(scope.bindings));
+    }
+
+    // Marks the bindings that live in a Cell, and returns the slots of the
+    // parameters among them.
+    private static List<Integer> cells(List<Binding> bindings) {
+        List<Integer> params = new ArrayList<>();
+        for (Binding binding : bindings) {
+            boolean cell = binding.cell();
+            for (Expr use : binding.uses) {
+                if (use instanceof Variable) {
+                    ((Variable) use).cell = cell;
+                } else {
+                    ((Assign) use).cell = cell;
+                }
+            }
+            if (binding.declaration instanceof Var) {
+                ((Var) binding.declaration).cell = cell;
+            } else if (binding.declaration instanceof Function) {
+                ((Function) binding.declaration).cell = cell;
+            } else if (cell) {
+                params.add(binding.slot);
+            }
+        }
+        return params;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    // The last statement's value is the function's result, so a call that
+    // makes up the whole statement is in tail position.
+    private static Call tailCall(List<Stmt> body) {
+        if (body.isEmpty() || !(body.get(body.size() - 1) instanceof Expression)) {
+            return null;
+        }
+        Expr expr = ((Expression) body.get(body.size() - 1)).expr;
+        while (expr instanceof Grouping) {
+            expr = ((Grouping) expr).expression;
+        }
+        return expr instanceof Call ? (Call) expr : null;
+    }
+
+    @Override
+    public Void visitBinary(Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnary(Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteral(Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Variable expr) {
+        int[] location = new int[2];
+        if (lookup(expr.name, expr, location) != null) {
+            expr.depth = location[0];
+            expr.slot = location[1];
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign expr) {
+        resolve(expr.value);
+        int[] location = new int[2];
+        Binding binding = lookup(expr.name, expr, location);
+        if (binding != null) {
+            expr.depth = location[0];
+            expr.slot = location[1];
+            binding.assigned = true;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Conditional expr) {
+        resolve(expr.cond);
+        resolve(expr.thenBranch);
+        resolve(expr.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call expr) {
+        resolve(expr.callee);
+        for (Expr arg : expr.args) {
+            resolve(arg);
+        }
+        return null;
+    }
+}
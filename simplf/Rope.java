@@ -0,0 +1,84 @@
+package simplf;
+
+import java.util.ArrayDeque;
+
+// A string built by "+" that has not been looked at yet: the two operands
+// are kept as they are (a String or another Rope) and only copied into one
+// String when the result is compared, or asked for with toString. Building
+// a string one piece at a time in a loop is linear this way instead of
+// copying everything built so far on every iteration. Printing writes the
+// pieces out without flattening them.
+//
+// Ropes made in a loop are deep, so both walks below keep their own stack
+// instead of recursing.
+final class Rope {
+    // shorter results are cheaper to copy than to keep as a tree
+    static final int MIN_LENGTH = 256;
+
+    private Object left, right;
+    private final int length;
+    private String flat;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    // Joins two strings, each a String or a Rope.
+    static Object concat(Object left, Object right) {
+        int length = length(left) + length(right);
+        if (length < MIN_LENGTH) {
+            return left.toString().concat(right.toString());
+        }
+        return new Rope(left, right, length);
+    }
+
+    private static int length(Object string) {
+        return string instanceof Rope ? ((Rope) string).length : ((String) string).length();
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            char[] chars = new char[length];
+            int pos = 0;
+            ArrayDeque<Object> pending = new ArrayDeque<>();
+            pending.push(this);
+            while (!pending.isEmpty()) {
+                Object piece = pending.pop();
+                if (piece instanceof Rope && ((Rope) piece).flat == null) {
+                    pending.push(((Rope) piece).right);
+                    pending.push(((Rope) piece).left);
+                    continue;
+                }
+                String string = piece.toString();
+                string.getChars(0, string.length(), chars, pos);
+                pos += string.length();
+            }
+            flat = new String(chars);
+            left = null;
+            right = null;
+        }
+        return flat;
+    }
+
+    StringBuilder appendTo(StringBuilder builder) {
+        if (flat != null) {
+            return builder.append(flat);
+        }
+        builder.ensureCapacity(builder.length() + length);
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Object piece = pending.pop();
+            if (piece instanceof Rope && ((Rope) piece).flat == null) {
+                pending.push(((Rope) piece).right);
+                pending.push(((Rope) piece).left);
+            } else {
+                builder.append(piece.toString());
+            }
+        }
+        return builder;
+    }
+}
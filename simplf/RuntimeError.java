@@ -1,9 +1,9 @@
 package simplf; 
 
-class RuntimeError extends RuntimeException {
-    final Token token;
+public class RuntimeError extends RuntimeException {
+    public final Token token;
 
-    RuntimeError(Token token, String message) {
+    public RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
     }
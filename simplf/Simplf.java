@@ -14,18 +14,65 @@ import org.antlr.v4.runtime.CommonTokenStream;
 
 import simplf.parser.simplfLexer;
 import simplf.parser.simplfParser;
+import simplf.vm.VM;
 
 public class Simplf {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     private static final Interpreter interpreter = new Interpreter();
     private static final TypeChecker typechecker = new TypeChecker();
+    private static final Resolver resolver = new Resolver();
+    private static VM vm;
+
+    // "tree" walks the AST with the Interpreter, "closure" compiles it into
+    // nested Code objects first (see ClosureCompiler), "vm" compiles it to
+    // bytecode and keeps its call stack on the heap, bounded by --max-depth
+    private static String engine = "tree";
+    private static int maxDepth = VM.DEFAULT_MAX_DEPTH;
+    // in the REPL later lines can still assign to this line's globals
+    private static boolean interactive = false;
 
     public static void main(String args[]) throws IOException {
-        if (args.length > 1) {
+        String path = null;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--max-depth=")) {
+                try {
+                    maxDepth = Integer.parseInt(arg.substring("--max-depth=".length()));
+                } catch (NumberFormatException e) {
+                    maxDepth = -1;
+                }
+                if (maxDepth <= 0) {
+                    System.err.println("Invalid max depth: " + arg);
+                    System.exit(64);
+                }
+            } else if (arg.startsWith("--buffer=")) {
+                int limit;
+                try {
+                    limit = Integer.parseInt(arg.substring("--buffer=".length()));
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if (limit < 0) {
+                    System.err.println("Invalid buffer size: " + arg);
+                    System.exit(64);
+                }
+                Output.setLimit(limit);
+            } else if (path == null) {
+                path = arg;
+            } else {
+                System.exit(64);
+            }
+        }
+        if (!engine.equals("tree") && !engine.equals("closure") && !engine.equals("vm")) {
+            System.err.println("Unknown engine: " + engine);
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        }
+        vm = new VM(maxDepth);
+
+        if (path != null) {
+            runFile(path);
         } else {
             runPrompt();
         }
@@ -33,7 +80,11 @@ public class Simplf {
 
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        try {
+            run(new String(bytes, Charset.defaultCharset()));
+        } finally {
+            Output.flush();
+        }
         if (hadError)
             System.exit(65);
         if (hadRuntimeError)
@@ -43,8 +94,10 @@ public class Simplf {
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader br = new BufferedReader(input);
+        interactive = true;
 
         for (;;) {
+            Output.flush();
             System.out.print("> ");
             String line = br.readLine();
             if (line == null)
@@ -73,8 +126,27 @@ public class Simplf {
         //System.out.println("Desugared program:");
         //print_program(desugared_statements);
 
-        typechecker.typeCheck(desugared_statements);
-        interpreter.interpret(desugared_statements);
+        if (!typechecker.typeCheck(desugared_statements)) {
+            return;
+        }
+
+        List<Stmt> inlined_statements =
+            (new Inliner(!interactive)).inline(desugared_statements);
+        List<Stmt> folded_statements =
+            (new ConstantFolder(!interactive)).fold(inlined_statements);
+        List<Stmt> optimized_statements =
+            (new LoopHoister()).hoist(folded_statements);
+
+        resolver.resolve(optimized_statements);
+        if (engine.equals("vm")) {
+            vm.interpret(optimized_statements, resolver.globalSlots());
+        } else if (engine.equals("closure")) {
+            interpreter.globals.reserve(resolver.globalSlots());
+            ClosureCompiler.run(optimized_statements, interpreter.globals);
+        } else {
+            interpreter.globals.reserve(resolver.globalSlots());
+            interpreter.interpret(optimized_statements);
+        }
     }
 
     static void error(int line, int col, String message) {
@@ -82,6 +154,7 @@ public class Simplf {
     }
 
     private static void report(int line, int col, String where, String message) {
+        Output.flush();
         System.err.println("[line " + line + ", col " + col + "] Error" + where + ":" + message);
         hadError = true;
     }
@@ -95,12 +168,17 @@ public class Simplf {
     }
 
     public static void runtimeError(RuntimeError error) {
+        Output.flush();
         System.err.println(error.getMessage() + ": [line " + error.token.line + " col " + error.token.col + "]");
         hadRuntimeError = true;
     }
-    public static void typeError(TypeError error) {
-        System.err.println(error.getMessage() + ": [line " + error.token.line + " col " + error.token.col + "]");
-        hadRuntimeError = true;
-        System.exit(0);
+    // Every error the TypeChecker found, in source order. The program does
+    // not run, and the exit code is that of a syntax error.
+    public static void typeErrors(List<TypeError> errors) {
+        Output.flush();
+        for (TypeError error : errors) {
+            System.err.println(error.getMessage() + ": [line " + error.token.line + " col " + error.token.col + "]");
+        }
+        hadError = true;
     }
 }
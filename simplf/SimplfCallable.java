@@ -1,8 +1,14 @@
 package simplf; 
 
-import java.util.List;
-
 interface SimplfCallable {
 
-    Object call(Interpreter interpreter, List<Object> args);
-}
\ No newline at end of file
+    // A frame for one call. The caller stores the arguments into its first
+    // slots and hands it back to call().
+    Frame enter();
+
+    // Parameters the frame from enter() has room for; missing arguments
+    // are nil.
+    int arity();
+
+    Object call(Interpreter interpreter, Frame frame);
+}
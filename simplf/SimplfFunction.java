@@ -1,13 +1,22 @@
 package simplf;
 
-import java.util.List;
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
 
 class SimplfFunction implements SimplfCallable {
     Stmt.Function declaration;
-    Environment closure;
+    Frame closure;
     DataType return_type;
+    // calls so far, and the Jit's version of the body once it is hot
+    private int calls;
+    MethodHandle compiled;
+    // frames of finished calls, reused by later ones; a deep recursion
+    // leaves only the first POOL_LIMIT behind
+    private static final int POOL_LIMIT = 16;
+    private Frame[] pool = new Frame[4];
+    private int free;
 
-    SimplfFunction(Stmt.Function declaration, Environment closure, DataType return_type) {
+    SimplfFunction(Stmt.Function declaration, Frame closure, DataType return_type) {
         this.declaration = declaration;
         this.closure = closure;
         this.return_type = return_type;
@@ -15,32 +24,87 @@ class SimplfFunction implements SimplfCallable {
 
     SimplfFunction(Stmt.Function declaration, DataType return_type) {
         this.declaration = declaration;
-        this.closure = new Environment();
+        this.closure = null;
         this.return_type = return_type;
     }
 
-    public void setClosure(Environment environment) {
-        this.closure = environment;
+    // Runs a function declaration in frame: makes the closure and stores it
+    // in the declaration's slot, which is a Cell when the body refers to the
+    // function itself.
+    static SimplfFunction define(Stmt.Function declaration, Frame frame) {
+        Cell cell = null;
+        if (declaration.cell) {
+            cell = new Cell(null);
+            frame.slots[declaration.slot] = cell;
+        }
+        SimplfFunction f = new SimplfFunction(declaration, frame.capture(declaration),
+                declaration.type);
+        if (cell != null) {
+            cell.value = f;
+        } else {
+            frame.slots[declaration.slot] = f;
+        }
+        return f;
+    }
+
+    @Override
+    public Frame enter() {
+        if (free > 0) {
+            return pool[--free];
+        }
+        return new Frame(declaration.frameSize, closure);
+    }
+
+    @Override
+    public int arity() {
+        return declaration.params.size();
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> args) {
-        for (int i = 0; i < args.size(); i++) {
-            Token t = declaration.params.get(i);
-            //System.out.println("fn param: " + t.lexeme);
-
-            Expr.Literal e = new Expr.Literal(args.get(i));
-            Stmt.Var stmt = new Stmt.Var(t, e, declaration.param_types.get(i));
-            interpreter.visitVarStmt(stmt);
+    public Object call(Interpreter interpreter, Frame frame) {
+        SimplfFunction f = this;
+        for (;;) {
+            Object ret = f.run(interpreter, frame);
+            f.exit(frame);
+            if (!(ret instanceof TailCall)) {
+                return ret;
+            }
+            // the body ended in a tail call: make it here, without recursing
+            TailCall tail = (TailCall) ret;
+            frame = tail.frame;
+            if (!(tail.callee instanceof SimplfFunction)) {
+                return tail.callee.call(interpreter, frame);
+            }
+            f = (SimplfFunction) tail.callee;
         }
-        Object ret = new Object();
-        for (Stmt s : declaration.body) {
-            //System.out.print("execute stmt: ");
-            ret = interpreter.execute(s);
-            //System.out.println(ret);
+    }
+
+    private Object run(Interpreter interpreter, Frame frame) {
+        // the Resolver gives parameters the first slots of the frame
+        frame.box(declaration.cellParams);
+        if (compiled == null && ++calls == Jit.THRESHOLD) {
+            compiled = Jit.compile(declaration);
         }
+        if (compiled != null) {
+            return Jit.run(compiled, frame);
+        }
+        // the closure engine compiled the body when it met the declaration
+        return declaration.code != null
+            ? declaration.code.run(frame)
+            : interpreter.executeBody(declaration, frame);
+    }
 
-        return ret;
+    // Keep the frame for the next call. Closures made by the call only kept
+    // what they captured, not the frame.
+    private void exit(Frame frame) {
+        if (free == pool.length) {
+            if (free == POOL_LIMIT) {
+                return;
+            }
+            pool = Arrays.copyOf(pool, Math.min(free * 2, POOL_LIMIT));
+        }
+        Arrays.fill(frame.slots, null);
+        pool[free++] = frame;
     }
 
     @Override
@@ -2,10 +2,11 @@ package simplf;
 
 import java.util.List;
 
-public abstract class Stmt {
-    abstract <T> T accept(Visitor<T> vis);
+public abstract sealed class Stmt
+        permits Stmt.Expression, Stmt.Print, Stmt.Var, Stmt.Block, Stmt.If, Stmt.While, Stmt.For, Stmt.Function {
+    public abstract <T> T accept(Visitor<T> vis);
 
-    interface Visitor<T> {
+    public interface Visitor<T> {
         T visitPrintStmt(Print stmt);
 
         T visitExprStmt(Expression stmt);
@@ -24,36 +25,39 @@ public abstract class Stmt {
 
     }
 
-    public static class Expression extends Stmt {
-        final Expr expr;
+    public static final class Expression extends Stmt {
+        public final Expr expr;
 
         public Expression(Expr expr) {
             this.expr = expr;
         }
 
         @Override
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitExprStmt(this);
         }
     }
 
-    public static class Print extends Stmt {
-        final Expr expr;
+    public static final class Print extends Stmt {
+        public final Expr expr;
 
         public Print(Expr expr) {
             this.expr = expr;
         }
 
         @Override
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitPrintStmt(this);
         }
     }
 
-    public static class Var extends Stmt {
-        final Token name;
-        final Expr initializer;
-        final DataType type;
+    public static final class Var extends Stmt {
+        public final Token name;
+        public final Expr initializer;
+        public final DataType type;
+        public int slot;
+        // the slot holds a Cell, see Resolver
+        public boolean cell;
 
         public Var(Token name, Expr initializer, DataType type) {
             this.name = name;
@@ -62,27 +66,27 @@ public abstract class Stmt {
         }
 
         @Override
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitVarStmt(this);
         }
     }
 
-    public static class Block extends Stmt {
-        final List<Stmt> statements;
+    public static final class Block extends Stmt {
+        public final List<Stmt> statements;
 
         public Block(List<Stmt> statements) {
             this.statements = statements;
         }
 
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitBlockStmt(this);
         }
     }
 
-    public static class If extends Stmt {
-        final Expr cond;
-        final Stmt thenBranch;
-        final Stmt elseBranch;
+    public static final class If extends Stmt {
+        public final Expr cond;
+        public final Stmt thenBranch;
+        public final Stmt elseBranch;
 
         public If(Expr cond, Stmt thenBranch, Stmt elseBranch) {
             this.cond = cond;
@@ -90,28 +94,28 @@ public abstract class Stmt {
             this.elseBranch = elseBranch;
         }
 
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitIfStmt(this);
         }
     }
 
-    public static class While extends Stmt {
-        final Expr cond;
-        final Stmt body;
+    public static final class While extends Stmt {
+        public final Expr cond;
+        public final Stmt body;
 
         public While(Expr cond, Stmt body) {
             this.cond = cond;
             this.body = body;
         }
 
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitWhileStmt(this);
         }
     }
 
-    public static class For extends Stmt {
-        final Expr init, cond, incr;
-        final Stmt body;
+    public static final class For extends Stmt {
+        public final Expr init, cond, incr;
+        public final Stmt body;
 
         public For(Expr init, Expr cond, Expr incr, Stmt body) {
             this.init = init;
@@ -120,17 +124,34 @@ public abstract class Stmt {
             this.body = body;
         }
 
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitForStmt(this);
         }
     }
 
-    public static class Function extends Stmt {
-        Token name;
-        DataType type;
-        List<Token> params;
-        List<Stmt> body;
-        List<DataType> param_types;
+    public static final class Function extends Stmt {
+        public Token name;
+        public DataType type;
+        public List<Token> params;
+        public List<Stmt> body;
+        public List<DataType> param_types;
+        // filled in by the Resolver: the slot holding the function itself and
+        // the number of slots a call needs (parameters first, then locals)
+        public int slot, frameSize;
+        // set by the Resolver when the body defines a function
+        public boolean hasClosures;
+        // how a closure is made, also from the Resolver: the (depth, slot)
+        // of each variable it captures, as seen where the declaration runs,
+        // and how far out the globals are from there
+        public int[] captureDepths, captureSlots;
+        public int globalsDepth;
+        // the function's own slot holds a Cell, and so do these parameters
+        public boolean cell;
+        public int[] cellParams;
+        // the call the body ends with, if its last statement is one
+        public Expr.Call tailCall;
+        // the body as compiled by the closure engine, once
+        ClosureCompiler.Code code;
 
         public Function(Token name, List<Token> params, List<Stmt> body, DataType type, List<DataType> param_types) {
             this.name = name;
@@ -140,7 +161,7 @@ public abstract class Stmt {
             this.param_types = param_types;
         }
 
-        <T> T accept(Visitor<T> vis) {
+        public <T> T accept(Visitor<T> vis) {
             return vis.visitFunctionStmt(this);
         }
     }
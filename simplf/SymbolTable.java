@@ -0,0 +1,51 @@
+package simplf;
+
+// The definitions of a global scope, by interned name. Open addressing with
+// linear probing over parallel arrays, kept at most half full. Ids are
+// handed out densely, so the id itself is a good enough hash. A name that
+// is defined again replaces its entry: nothing holds on to the old one once
+// the code after it has been looked at, which is what makes the association
+// list's shadowing the same as overwriting here.
+final class SymbolTable {
+    private int[] ids = new int[16];
+    private AssocList[] entries = new AssocList[16];
+    private int count;
+
+    AssocList find(int id) {
+        int mask = entries.length - 1;
+        for (int i = id & mask; entries[i] != null; i = (i + 1) & mask) {
+            if (ids[i] == id) {
+                return entries[i];
+            }
+        }
+        return null;
+    }
+
+    void put(AssocList entry) {
+        if (2 * (count + 1) > entries.length) {
+            grow();
+        }
+        int mask = entries.length - 1;
+        int i = entry.id & mask;
+        while (entries[i] != null && ids[i] != entry.id) {
+            i = (i + 1) & mask;
+        }
+        if (entries[i] == null) {
+            count++;
+        }
+        ids[i] = entry.id;
+        entries[i] = entry;
+    }
+
+    private void grow() {
+        AssocList[] old = entries;
+        ids = new int[old.length * 2];
+        entries = new AssocList[old.length * 2];
+        count = 0;
+        for (AssocList entry : old) {
+            if (entry != null) {
+                put(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package simplf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Every identifier gets a small int id the first time it is seen, and the
+// same id (and the same String) every time after. Tokens carry the id, so
+// the environments compare ints instead of strings. Ids are never released:
+// there are only as many as there are distinct names in the program.
+final class Symbols {
+    private static final Map<String, Integer> ids = new HashMap<>();
+    private static final List<String> names = new ArrayList<>();
+
+    private Symbols() {}
+
+    static synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    static synchronized String name(int id) {
+        return names.get(id);
+    }
+}
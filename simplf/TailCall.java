@@ -0,0 +1,21 @@
+package simplf;
+
+// A call in tail position that has been set up but not made yet. Instead of
+// calling, a function body hands this back to the trampoline in
+// SimplfFunction.call, which runs the callee in place of the returning call
+// so a chain of tail calls does not grow the Java stack.
+//
+// Each producer owns one instance and refills it for every tail call; the
+// trampoline reads it before anything else can run.
+final class TailCall {
+    SimplfCallable callee;
+    Frame frame;
+
+    TailCall() {}
+
+    TailCall set(SimplfCallable callee, Frame frame) {
+        this.callee = callee;
+        this.frame = frame;
+        return this;
+    }
+}
@@ -1,15 +1,24 @@
 package simplf;
 
 public class Token {
-    final TokenType type;
-    final int line, col;
-    final String lexeme;
-    final Object literal;
+    public final TokenType type;
+    public final int line, col;
+    public final String lexeme;
+    public final Object literal;
+    // the interned name of an identifier, -1 for any other token
+    public final int id;
 
     public Token(TokenType type, String lexeme, Object literal, int line, int col) {
         this.type = type;
-        this.lexeme = lexeme;
-        this.literal = literal;
+        if (type == TokenType.IDENTIFIER) {
+            this.id = Symbols.intern(lexeme);
+            this.lexeme = Symbols.name(id);
+            this.literal = lexeme.equals(literal) ? this.lexeme : literal;
+        } else {
+            this.id = -1;
+            this.lexeme = lexeme;
+            this.literal = literal;
+        }
         this.line = line;
         this.col = col;
     }
@@ -3,7 +3,29 @@ package simplf;
 class TypeEnvironment {
     protected Token token;
     protected TypeEnvironment enclosing;
-    protected AssocList data;
+    protected Hamt data = Hamt.EMPTY;
+    // The global scope keeps its definitions in a hash table instead, since
+    // there can be thousands of them. Scopes inside it (blocks at the top
+    // level) still add to the trie and look in the table last.
+    protected SymbolTable table;
+    protected boolean global;
+    // The checker keeps a reference to the scope each function is declared
+    // in and checks the bodies after the rest of the program, by which time
+    // the table has definitions the body must not see. So each global
+    // definition is numbered and keeps the one it replaced: root.defined
+    // counts them, and a scope from frozen() sees the first limit of them.
+    protected TypeEnvironment root;
+    protected int defined, limit = Integer.MAX_VALUE;
+
+    // A global definition and its number.
+    private static final class Global extends AssocList {
+        final int index;
+
+        Global(String name, int id, Object value, AssocList next, int index) {
+            super(name, id, value, next);
+            this.index = index;
+        }
+    }
 
     TypeEnvironment() {
         // a fresh, clean env
@@ -13,51 +35,71 @@ class TypeEnvironment {
         this.enclosing = enclosing;
     }
 
-    TypeEnvironment(AssocList assocList, TypeEnvironment enclosing) {
+    TypeEnvironment(Hamt data, TypeEnvironment enclosing) {
         this.enclosing = enclosing;
-        this.data = assocList;
+        this.data = data;
+        this.table = enclosing.table;
+        this.root = enclosing.root;
+        this.limit = enclosing.limit;
+    }
+
+    static TypeEnvironment global() {
+        TypeEnvironment e = new TypeEnvironment();
+        e.table = new SymbolTable();
+        e.global = true;
+        e.root = e;
+        return e;
+    }
+
+    // The environment for a block inside this one: its definitions must not
+    // outlive it, so they cannot go into the global table.
+    TypeEnvironment enter() {
+        if (!global) {
+            return this;
+        }
+        return new TypeEnvironment(data, this);
+    }
+
+    // This scope as it is now: later global definitions are not seen from it.
+    TypeEnvironment frozen() {
+        if (table == null || limit != Integer.MAX_VALUE) {
+            return this;
+        }
+        TypeEnvironment e = new TypeEnvironment(data, this);
+        e.limit = root.defined;
+        return e;
     }
 
     // Return a new version of the environment that defines the variable "name"
     // and sets its initial value to "value". Take care to ensure the proper aliasing
-    // relationship. There is an association list implementation in AssocList.java.
-    // If your "define" function adds a new entry to the association list without
-    // modifying the previous list, this should yield the correct aliasing
-    // relationsip.
+    // relationship: the entry is an AssocList, and the new environment maps the
+    // name to it in a copy of the trie (see Hamt.java), so the old environment
+    // still sees its own definition of "name", if any.
     //
-    // For example, if the original environment has the association list
-    // [{name: "x", value: 1}, {name: "y", value: 2}]
-    // the new environment after calling define(..., "z", 3) should have the following
-    //  association list:
-    // [{name: "z", value: 3}, {name: "x", value: 1}, {name: "y", value: 2}]
-    // This should be constructed by building a new class of type AssocList whose "next"
-    // reference is the previous AssocList.
+    // For example, if the original environment maps
+    // {x: {value: 1}, y: {value: 2}}
+    // the new environment after calling define(..., "x", 3) maps
+    // {x: {value: 3}, y: {value: 2}}
+    // where the entry for y is shared, so assigning y in either is seen by both.
     TypeEnvironment define(Token varToken, String name, Object type) {
         //System.out.println("defining: " + name + " = " + value);
-        AssocList newList = new AssocList(name, type, this.data);
-        TypeEnvironment e = new TypeEnvironment(newList, this);
+        if (global) {
+            table.put(new Global(name, varToken.id, type, table.find(varToken.id), defined++));
+            return this;
+        }
+        AssocList newList = new AssocList(name, varToken.id, type, null);
+        TypeEnvironment e = new TypeEnvironment(data.put(newList), this);
         return e;
     }
 
-    void assign(Token name, Object value) {
-        // don't assign, check the type
-        AssocList e = (AssocList) get(name);
-        assert e.value == value;
-    }
-
-    Object get(Token name) {
-        AssocList cur = this.data;
-        while(cur != null && cur.next != null) {
-            if (cur.name.equals(name.literal)) { return cur; }
-            cur = cur.next;
-        }
-        if (cur == null || !cur.name.equals(name.literal)) {
-            Simplf.runtimeError(
-                    new RuntimeError(
-                        name, "Undefined Symbol: " + name.lexeme));
-            throw new RuntimeException("Runtime Error");
+    AssocList find(int id) {
+        AssocList cur = data.get(id);
+        if (cur == null && table != null) {
+            cur = table.find(id);
+            while (cur != null && ((Global) cur).index >= limit) {
+                cur = cur.next;
+            }
         }
         return cur;
     }
 }
-
@@ -0,0 +1,61 @@
+package simplf;
+
+// Self-specializing implementation of a unary operator; see BinaryNode.
+abstract class UnaryNode {
+
+    abstract Object execute(Expr.Unary expr, Object right);
+
+    static final UnaryNode UNINITIALIZED = new Uninitialized();
+    static final UnaryNode GENERIC = new Generic();
+
+    private static Object rewrite(Expr.Unary expr, UnaryNode node, Object right) {
+        expr.node = node;
+        return node.execute(expr, right);
+    }
+
+    private static final class Uninitialized extends UnaryNode {
+        @Override
+        Object execute(Expr.Unary expr, Object right) {
+            UnaryNode node = GENERIC;
+            if (expr.op.type == TokenType.MINUS && right instanceof Double) {
+                node = new NegateNumber();
+            } else if (expr.op.type == TokenType.BANG) {
+                node = new Not();
+            }
+            return rewrite(expr, node, right);
+        }
+    }
+
+    private static final class NegateNumber extends UnaryNode {
+        @Override
+        Object execute(Expr.Unary expr, Object right) {
+            if (right instanceof Double) {
+                return -(double) right;
+            }
+            return rewrite(expr, GENERIC, right);
+        }
+    }
+
+    private static final class Not extends UnaryNode {
+        @Override
+        Object execute(Expr.Unary expr, Object right) {
+            return !Values.isTruthy(right);
+        }
+    }
+
+    private static final class Generic extends UnaryNode {
+        @Override
+        Object execute(Expr.Unary expr, Object right) {
+            switch (expr.op.type) {
+                case MINUS:
+                    Values.checkNumber(expr.op, right);
+                    return -(double) right;
+                case BANG:
+                    return !Values.isTruthy(right);
+                default:
+                    break;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package simplf;
+
+// Runtime semantics of simplf values that every execution engine shares, so
+// the tree-walking Interpreter and the bytecode VM print and compare alike.
+public final class Values {
+
+    private Values() {}
+
+    public static boolean isTruthy(Object object) {
+        if (object == null) {
+            return false;
+        }
+        if (object instanceof Boolean) {
+            return (boolean) object;
+        }
+        return true;
+    }
+
+    public static boolean isEqual(Object a, Object b) {
+        if (a instanceof Rope)
+            a = a.toString();
+        if (b instanceof Rope)
+            b = b.toString();
+        if (a == null)
+            return b == null;
+        return a.equals(b);
+    }
+
+    public static void checkNumber(Token op, Object object) {
+        if (object instanceof Double)
+            return;
+        throw new RuntimeError(op, "Operand must be a number");
+    }
+
+    public static void checkNumbers(Token op, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double)
+            return;
+        throw new RuntimeError(op, "Operand must be numbers");
+    }
+
+    // A string is a String, or a Rope built by "+".
+    public static boolean isString(Object object) {
+        return object instanceof String || object instanceof Rope;
+    }
+
+    // "+" concatenates as soon as either side is a string.
+    public static Object add(Token op, Object left, Object right) {
+        if (isString(left) || isString(right)) {
+            return concat(left, right);
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        throw new RuntimeError(op, "Addition operation not supported for operands.");
+    }
+
+    // "+", "-", "*" or "/" on two numbers.
+    public static double arithmetic(Token op, double left, double right) {
+        switch (op.type) {
+            case PLUS:
+                return left + right;
+            case MINUS:
+                return left - right;
+            case STAR:
+                return left * right;
+            default:
+                if (right == 0) {
+                    throw new RuntimeError(op, "Cannot divide by zero.");
+                }
+                return left / right;
+        }
+    }
+
+    // "<", "<=", ">" or ">=" on two numbers.
+    public static boolean compare(Token op, double left, double right) {
+        switch (op.type) {
+            case GREATER:
+                return left > right;
+            case GREATER_EQUAL:
+                return left >= right;
+            case LESS:
+                return left < right;
+            default:
+                return left <= right;
+        }
+    }
+
+    public static Object concat(Object left, Object right) {
+        return Rope.concat(isString(left) ? left : stringify(left),
+            isString(right) ? right : stringify(right));
+    }
+
+    public static String stringify(Object object) {
+        if (object instanceof String || object instanceof Rope) {
+            return object.toString();
+        }
+        return append(new StringBuilder(), object).toString();
+    }
+
+    // Writes the value as stringify would, without building strings in
+    // between. Numbers print like Double.toString minus a trailing ".0";
+    // integers below 10^7 (above that Double.toString switches to
+    // exponent notation) are written straight from their long value.
+    public static StringBuilder append(StringBuilder builder, Object object) {
+        if (object == null) {
+            return builder.append("nil");
+        }
+        if (object instanceof Double) {
+            double num = (double) object;
+            long integral = (long) num;
+            if (integral == num && integral > -10_000_000L && integral < 10_000_000L
+                    && (integral != 0 || 1 / num > 0)) {
+                return builder.append(integral);
+            }
+            if (num == 0) {
+                // -0.0
+                return builder.append("-0");
+            }
+            return builder.append(num);
+        }
+        if (object instanceof String) {
+            return builder.append((String) object);
+        }
+        if (object instanceof Rope) {
+            return ((Rope) object).appendTo(builder);
+        }
+        return builder.append(object);
+    }
+}
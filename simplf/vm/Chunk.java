@@ -0,0 +1,50 @@
+package simplf.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import simplf.Token;
+
+// A block of bytecode plus its constant pool. tokens[i] is the source token of
+// the instruction starting at offset i, used to report runtime errors.
+final class Chunk {
+    int[] code = new int[64];
+    Token[] tokens = new Token[64];
+    int count;
+    Object[] constants;
+
+    private final List<Object> pool = new ArrayList<>();
+    private final Map<Object, Integer> poolIndex = new HashMap<>();
+
+    int write(int b, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+        tokens[count] = token;
+        code[count] = b;
+        return count++;
+    }
+
+    int addConstant(Object value) {
+        // literals are shared, everything else (prototypes, markers) is unique
+        if (value instanceof Double || value instanceof String) {
+            Integer index = poolIndex.get(value);
+            if (index != null) {
+                return index;
+            }
+            poolIndex.put(value, pool.size());
+        }
+        pool.add(value);
+        return pool.size() - 1;
+    }
+
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        tokens = Arrays.copyOf(tokens, count);
+        constants = pool.toArray();
+    }
+}
@@ -0,0 +1,19 @@
+package simplf.vm;
+
+import simplf.Frame;
+
+// The runtime value of a function in the VM: its code and the variables it captured.
+final class Closure {
+    final Proto proto;
+    final Frame frame;
+
+    Closure(Proto proto, Frame frame) {
+        this.proto = proto;
+        this.frame = frame;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn >";
+    }
+}
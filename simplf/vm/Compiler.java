@@ -0,0 +1,400 @@
+package simplf.vm;
+
+import java.util.List;
+
+import simplf.Expr;
+import simplf.Expr.Assign;
+import simplf.Expr.Binary;
+import simplf.Expr.Call;
+import simplf.Expr.Conditional;
+import simplf.Expr.Grouping;
+import simplf.Expr.Literal;
+import simplf.Expr.Logical;
+import simplf.Expr.Unary;
+import simplf.Expr.Variable;
+import simplf.Stmt;
+import simplf.Stmt.Block;
+import simplf.Stmt.Expression;
+import simplf.Stmt.For;
+import simplf.Stmt.Function;
+import simplf.Stmt.If;
+import simplf.Stmt.Print;
+import simplf.Stmt.Var;
+import simplf.Stmt.While;
+import simplf.Token;
+import simplf.TokenType;
+
+// Compiles resolved statements to bytecode. Variables use the (depth, slot)
+// pairs the Resolver stored on the tree, so the VM shares the Interpreter's
+// Frame layout.
+//
+// A function returns the value of its last statement, so that statement is
+// compiled with "keep" set and leaves the same value the Interpreter's
+// execute() would return; every other statement leaves the stack untouched.
+final class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private Proto proto;
+    private Chunk chunk;
+    private int stackDepth;
+    private boolean keep;
+    private Token lastToken;
+
+    Compiler() {}
+
+    Proto compile(List<Stmt> stmts) {
+        proto = new Proto(null);
+        chunk = proto.chunk;
+        for (Stmt stmt : stmts) {
+            statement(stmt, false);
+        }
+        emit(OpCode.NIL, null);
+        emit(OpCode.RETURN, null);
+        chunk.finish();
+        return proto;
+    }
+
+    private Proto function(Function decl) {
+        Proto enclosingProto = proto;
+        int enclosingDepth = stackDepth;
+
+        proto = new Proto(decl);
+        chunk = proto.chunk;
+        stackDepth = 0;
+        try {
+            for (int slot : decl.cellParams) {
+                emitSlot(OpCode.GET_LOCAL, slot, decl.name);
+                emit(OpCode.BOX, null);
+                emitSlot(OpCode.STORE_LOCAL, slot, decl.name);
+            }
+            if (decl.body.isEmpty()) {
+                emitConstant(new Object(), decl.name);
+            }
+            for (int i = 0; i < decl.body.size(); i++) {
+                statement(decl.body.get(i), i == decl.body.size() - 1);
+            }
+            emit(OpCode.RETURN, decl.name);
+            chunk.finish();
+            return proto;
+        } finally {
+            proto = enclosingProto;
+            chunk = proto.chunk;
+            stackDepth = enclosingDepth;
+        }
+    }
+
+    private void statement(Stmt stmt, boolean keepValue) {
+        keep = keepValue;
+        stmt.accept(this);
+    }
+
+    private void expression(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        boolean value = keep;
+        expression(stmt.expr);
+        emit(OpCode.PRINT, null);
+        if (value) {
+            emit(OpCode.NIL, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExprStmt(Expression stmt) {
+        boolean value = keep;
+        expression(stmt.expr);
+        if (!value) {
+            emit(OpCode.POP, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        boolean value = keep;
+        expression(stmt.initializer);
+        if (stmt.cell) {
+            emit(OpCode.BOX, null);
+        }
+        emitSlot(OpCode.STORE_LOCAL, stmt.slot, stmt.name);
+        if (value) {
+            emit(OpCode.NIL, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Block stmt) {
+        boolean value = keep;
+        for (Stmt s : stmt.statements) {
+            statement(s, false);
+        }
+        if (value) {
+            emitConstant(new Object(), null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        // an if statement's value is its condition
+        boolean value = keep;
+        expression(stmt.cond);
+        if (value) {
+            emit(OpCode.DUP, null);
+        }
+        int elseJump = emitJump(OpCode.JUMP_UNLESS_TRUE);
+        statement(stmt.thenBranch, false);
+        if (stmt.elseBranch == null) {
+            patchJump(elseJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            statement(stmt.elseBranch, false);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        boolean value = keep;
+        int loopStart = chunk.count;
+        expression(stmt.cond);
+        int exitJump = emitJump(OpCode.JUMP_UNLESS_TRUE);
+        statement(stmt.body, false);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        if (value) {
+            emit(OpCode.NIL, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(For stmt) {
+        boolean value = keep;
+        expression(stmt.init);
+        emit(OpCode.POP, null);
+        int loopStart = chunk.count;
+        expression(stmt.cond);
+        int exitJump = emitJump(OpCode.JUMP_UNLESS_TRUE);
+        statement(stmt.body, false);
+        expression(stmt.incr);
+        emit(OpCode.POP, null);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        if (value) {
+            emit(OpCode.NIL, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        boolean value = keep;
+        Proto body = function(stmt);
+        if (stmt.cell) {
+            // the closure captures the cell, which then gets the closure
+            emit(OpCode.NIL, null);
+            emit(OpCode.BOX, null);
+            emitSlot(OpCode.STORE_LOCAL, stmt.slot, stmt.name);
+            emitOperand(OpCode.CLOSURE, constant(body), stmt.name);
+            emitOuter(OpCode.SET_CELL, 0, stmt.slot, stmt.name);
+            if (!value) {
+                emit(OpCode.POP, null);
+            }
+            return null;
+        }
+        emitOperand(OpCode.CLOSURE, constant(body), stmt.name);
+        if (value) {
+            emit(OpCode.DUP, null);
+        }
+        emitSlot(OpCode.STORE_LOCAL, stmt.slot, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(Binary expr) {
+        expression(expr.left);
+        if (expr.op.type == TokenType.COMMA) {
+            emit(OpCode.POP, null);
+            expression(expr.right);
+            return null;
+        }
+        expression(expr.right);
+        switch (expr.op.type) {
+            case PLUS:          emit(OpCode.ADD, expr.op); break;
+            case MINUS:         emit(OpCode.SUBTRACT, expr.op); break;
+            case STAR:          emit(OpCode.MULTIPLY, expr.op); break;
+            case SLASH:         emit(OpCode.DIVIDE, expr.op); break;
+            case GREATER:       emit(OpCode.GREATER, expr.op); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL, expr.op); break;
+            case LESS:          emit(OpCode.LESS, expr.op); break;
+            case LESS_EQUAL:    emit(OpCode.LESS_EQUAL, expr.op); break;
+            case EQUAL_EQUAL:   emit(OpCode.EQUAL, expr.op); break;
+            case BANG_EQUAL:    emit(OpCode.NOT_EQUAL, expr.op); break;
+            default:
+                emit(OpCode.POP, null);
+                emit(OpCode.POP, null);
+                emit(OpCode.NIL, null);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnary(Unary expr) {
+        expression(expr.right);
+        switch (expr.op.type) {
+            case MINUS: emit(OpCode.NEGATE, expr.op); break;
+            case BANG:  emit(OpCode.NOT, expr.op); break;
+            default:
+                emit(OpCode.POP, null);
+                emit(OpCode.NIL, null);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLiteral(Literal expr) {
+        if (expr.val == null) {
+            emit(OpCode.NIL, null);
+        } else if (expr.val instanceof Boolean) {
+            emit((Boolean) expr.val ? OpCode.TRUE : OpCode.FALSE, null);
+        } else if (expr.val instanceof Double) {
+            emitOperand(OpCode.NUMBER, constant(expr.val), null);
+        } else {
+            emitConstant(expr.val, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(Grouping expr) {
+        expression(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Variable expr) {
+        if (expr.depth < 0) {
+            emit(OpCode.UNDEFINED, expr.name);
+        } else if (expr.cell) {
+            emitOuter(OpCode.GET_CELL, expr.depth, expr.slot, expr.name);
+        } else if (expr.depth == 0) {
+            emitSlot(OpCode.GET_LOCAL, expr.slot, expr.name);
+        } else {
+            emitOuter(OpCode.GET_OUTER, expr.depth, expr.slot, expr.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign expr) {
+        expression(expr.value);
+        if (expr.depth < 0) {
+            emit(OpCode.POP, null);
+            emit(OpCode.UNDEFINED, expr.name);
+        } else if (expr.cell) {
+            emitOuter(OpCode.SET_CELL, expr.depth, expr.slot, expr.name);
+        } else if (expr.depth == 0) {
+            emitSlot(OpCode.SET_LOCAL, expr.slot, expr.name);
+        } else {
+            emitOuter(OpCode.SET_OUTER, expr.depth, expr.slot, expr.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        expression(expr.left);
+        byte op = expr.op.type == TokenType.OR ? OpCode.JUMP_IF_TRUTHY : OpCode.JUMP_IF_FALSY;
+        int endJump = emitJump(op);
+        emit(OpCode.POP, null);
+        expression(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Conditional expr) {
+        expression(expr.cond);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSY);
+        emit(OpCode.POP, null);
+        expression(expr.thenBranch);
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        // the condition is still on the stack on this path
+        emit(OpCode.POP, null);
+        expression(expr.elseBranch);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call expr) {
+        expression(expr.callee);
+        for (Expr arg : expr.args) {
+            expression(arg);
+        }
+        // the Resolver found the call the function ends with
+        boolean tail = proto.declaration != null && expr == proto.declaration.tailCall;
+        emit(tail ? OpCode.TAIL_CALL : OpCode.CALL, expr.paren);
+        chunk.write(expr.args.size(), null);
+        stackDepth -= expr.args.size();
+        return null;
+    }
+
+    private void emit(byte op, Token token) {
+        if (token != null) {
+            lastToken = token;
+        }
+        chunk.write(op, token);
+        stackDepth += OpCode.STACK_EFFECT[op];
+        if (stackDepth > proto.maxStack) {
+            proto.maxStack = stackDepth;
+        }
+    }
+
+    private void emitOperand(byte op, int operand, Token token) {
+        emit(op, token);
+        chunk.write(operand, null);
+    }
+
+    private void emitSlot(byte op, int slot, Token token) {
+        emitOperand(op, slot, token);
+    }
+
+    private void emitOuter(byte op, int depth, int slot, Token token) {
+        emit(op, token);
+        chunk.write(depth, null);
+        chunk.write(slot, null);
+    }
+
+    private int constant(Object value) {
+        return chunk.addConstant(value);
+    }
+
+    private void emitConstant(Object value, Token token) {
+        emitOperand(OpCode.CONSTANT, constant(value), token);
+    }
+
+    private int emitJump(byte op) {
+        emit(op, lastToken);
+        chunk.write(0, null);
+        return chunk.count - 1;
+    }
+
+    private void patchJump(int at) {
+        chunk.code[at] = chunk.count - at - 1;
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP, lastToken);
+        chunk.write(chunk.count + 1 - loopStart, null);
+    }
+}
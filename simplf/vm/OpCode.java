@@ -0,0 +1,62 @@
+package simplf.vm;
+
+// Instruction set of the VM. Code is an int[]: each operand takes the int
+// following the opcode.
+final class OpCode {
+    static final byte CONSTANT = 0;         // constant index
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte DUP = 5;
+
+    static final byte GET_LOCAL = 6;        // slot
+    static final byte SET_LOCAL = 7;        // slot, leaves the value on the stack
+    static final byte STORE_LOCAL = 8;      // slot, pops the value
+    static final byte GET_OUTER = 9;        // depth, slot
+    static final byte SET_OUTER = 10;       // depth, slot, leaves the value
+    static final byte UNDEFINED = 11;       // raises "Undefined Symbol" for the op's token (never returns)
+
+    static final byte ADD = 12;
+    static final byte SUBTRACT = 13;
+    static final byte MULTIPLY = 14;
+    static final byte DIVIDE = 15;
+    static final byte GREATER = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS = 18;
+    static final byte LESS_EQUAL = 19;
+    static final byte EQUAL = 20;
+    static final byte NOT_EQUAL = 21;
+    static final byte NEGATE = 22;
+    static final byte NOT = 23;
+
+    static final byte JUMP = 24;            // forward offset
+    static final byte JUMP_UNLESS_TRUE = 25; // forward offset, pops (if/while/for)
+    static final byte JUMP_IF_FALSY = 26;   // forward offset, keeps the value (and, ?:)
+    static final byte JUMP_IF_TRUTHY = 27;  // forward offset, keeps the value (or)
+    static final byte LOOP = 28;            // backward offset
+
+    static final byte PRINT = 29;
+    static final byte CLOSURE = 30;         // constant index of a Proto
+    static final byte CALL = 31;            // argument count
+    static final byte RETURN = 32;
+    static final byte NUMBER = 33;          // constant index of a Double, pushed unboxed
+
+    static final byte GET_CELL = 34;        // depth, slot of a Cell
+    static final byte SET_CELL = 35;        // depth, slot of a Cell, leaves the value
+    static final byte BOX = 36;             // replaces the value with a new Cell holding it
+    static final byte TAIL_CALL = 37;       // argument count, calls in place of the current function
+
+    // Net stack effect of each opcode; CALL and TAIL_CALL additionally pop
+    // their arguments.
+    static final int[] STACK_EFFECT = {
+        1, 1, 1, 1, -1, 1,
+        1, 0, -1, 1, 0, 1,
+        -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 0, 0,
+        0, -1, 0, 0, 0,
+        -1, 1, 0, -1, 1,
+        1, 0, 0, 0,
+    };
+
+    private OpCode() {}
+}
@@ -0,0 +1,20 @@
+package simplf.vm;
+
+import simplf.Stmt;
+
+// A compiled function body (or the top-level script when declaration is null).
+final class Proto {
+    final Stmt.Function declaration;
+    final Chunk chunk = new Chunk();
+    int frameSize;
+    int arity;
+    int maxStack;
+
+    Proto(Stmt.Function declaration) {
+        this.declaration = declaration;
+        if (declaration != null) {
+            this.frameSize = declaration.frameSize;
+            this.arity = declaration.params.size();
+        }
+    }
+}
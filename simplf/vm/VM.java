@@ -0,0 +1,409 @@
+package simplf.vm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import simplf.Cell;
+import simplf.Frame;
+import simplf.Output;
+import simplf.RuntimeError;
+import simplf.Simplf;
+import simplf.Stmt;
+import simplf.Token;
+import simplf.Values;
+
+// Stack-based bytecode engine, selected with --engine=vm. Runs the same
+// resolved statements as the Interpreter and produces the same output.
+//
+// Numbers on the operand stack are not boxed: their stack entry holds the NUM
+// marker and the value sits at the same index of nums[]. They are boxed only
+// when they leave the stack, i.e. when stored in a Frame or printed.
+public final class VM {
+    // Calls and operands live in growable arrays on the heap rather than on
+    // the Java stack, so recursion depth is bounded by maxDepth (and memory)
+    // instead of by the JVM's thread stack.
+    public static final int DEFAULT_MAX_DEPTH = 1_000_000;
+
+    private static final Object NUM = new Object();
+
+    public final Frame globals = new Frame(0, null);
+    private final int maxDepth;
+
+    private Object[] stack = new Object[256];
+    private double[] nums = new double[256];
+
+    // The call stack is kept in parallel arrays so a call only allocates the
+    // callee's Frame.
+    private Proto[] callProtos = new Proto[64];
+    private int[] callIps = new int[64];
+    private Frame[] callFrames = new Frame[64];
+
+    public VM() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    public VM(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public void interpret(List<Stmt> stmts, int globalSlots) {
+        globals.reserve(globalSlots);
+        try {
+            run(new Compiler().compile(stmts));
+        } catch (RuntimeError error) {
+            Simplf.runtimeError(error);
+        }
+    }
+
+    private void growStack(int size) {
+        int capacity = stack.length;
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        stack = Arrays.copyOf(stack, capacity);
+        nums = Arrays.copyOf(nums, capacity);
+    }
+
+    private void growCalls() {
+        int capacity = callProtos.length * 2;
+        callProtos = Arrays.copyOf(callProtos, capacity);
+        callIps = Arrays.copyOf(callIps, capacity);
+        callFrames = Arrays.copyOf(callFrames, capacity);
+    }
+
+    // The boxed value of stack entry i.
+    private Object value(int i) {
+        Object v = stack[i];
+        return v == NUM ? (Object) nums[i] : v;
+    }
+
+    private void run(Proto script) {
+        if (script.maxStack > stack.length) {
+            growStack(script.maxStack);
+        }
+        Object[] stack = this.stack;
+        double[] nums = this.nums;
+        int sp = 0;
+        int fp = 0;
+
+        Proto proto = script;
+        int[] code = proto.chunk.code;
+        Token[] tokens = proto.chunk.tokens;
+        Object[] constants = proto.chunk.constants;
+        Frame frame = globals;
+        int ip = 0;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[code[ip]];
+                    ip += 1;
+                    break;
+                case OpCode.NUMBER:
+                    nums[sp] = (double) constants[code[ip]];
+                    stack[sp++] = NUM;
+                    ip += 1;
+                    break;
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.TRUE:
+                    stack[sp++] = true;
+                    break;
+                case OpCode.FALSE:
+                    stack[sp++] = false;
+                    break;
+                case OpCode.POP:
+                    sp--;
+                    break;
+                case OpCode.DUP:
+                    stack[sp] = stack[sp - 1];
+                    nums[sp] = nums[sp - 1];
+                    sp++;
+                    break;
+
+                case OpCode.GET_LOCAL: {
+                    Object v = frame.slots[code[ip]];
+                    ip += 1;
+                    if (v instanceof Double) {
+                        nums[sp] = (double) v;
+                        v = NUM;
+                    }
+                    stack[sp++] = v;
+                    break;
+                }
+                case OpCode.SET_LOCAL:
+                    frame.slots[code[ip]] = value(sp - 1);
+                    ip += 1;
+                    break;
+                case OpCode.STORE_LOCAL:
+                    frame.slots[code[ip]] = value(--sp);
+                    ip += 1;
+                    break;
+                case OpCode.GET_OUTER: {
+                    Frame outer = frame.ancestor(code[ip]);
+                    Object v = outer.slots[code[ip + 1]];
+                    ip += 2;
+                    if (v instanceof Double) {
+                        nums[sp] = (double) v;
+                        v = NUM;
+                    }
+                    stack[sp++] = v;
+                    break;
+                }
+                case OpCode.SET_OUTER: {
+                    Frame outer = frame.ancestor(code[ip]);
+                    outer.slots[code[ip + 1]] = value(sp - 1);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_CELL: {
+                    Cell cell = (Cell) frame.ancestor(code[ip]).slots[code[ip + 1]];
+                    Object v = cell.value;
+                    ip += 2;
+                    if (v instanceof Double) {
+                        nums[sp] = (double) v;
+                        v = NUM;
+                    }
+                    stack[sp++] = v;
+                    break;
+                }
+                case OpCode.SET_CELL: {
+                    Cell cell = (Cell) frame.ancestor(code[ip]).slots[code[ip + 1]];
+                    cell.value = value(sp - 1);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.BOX:
+                    stack[sp - 1] = new Cell(value(sp - 1));
+                    break;
+                case OpCode.UNDEFINED: {
+                    Token name = tokens[ip - 1];
+                    throw new RuntimeError(name, "Undefined Symbol: " + name.lexeme);
+                }
+
+                case OpCode.ADD:
+                    sp--;
+                    if (stack[sp - 1] == NUM && stack[sp] == NUM) {
+                        nums[sp - 1] += nums[sp];
+                    } else {
+                        stack[sp - 1] = Values.add(tokens[ip - 1], value(sp - 1), value(sp));
+                    }
+                    break;
+                case OpCode.SUBTRACT:
+                    sp--;
+                    if (stack[sp - 1] != NUM || stack[sp] != NUM) {
+                        Values.checkNumbers(tokens[ip - 1], value(sp - 1), value(sp));
+                    }
+                    nums[sp - 1] -= nums[sp];
+                    break;
+                case OpCode.MULTIPLY:
+                    sp--;
+                    if (stack[sp - 1] != NUM || stack[sp] != NUM) {
+                        Values.checkNumbers(tokens[ip - 1], value(sp - 1), value(sp));
+                    }
+                    nums[sp - 1] *= nums[sp];
+                    break;
+                case OpCode.DIVIDE:
+                    sp--;
+                    if (stack[sp - 1] != NUM || stack[sp] != NUM) {
+                        Values.checkNumbers(tokens[ip - 1], value(sp - 1), value(sp));
+                    }
+                    if (nums[sp] == 0) {
+                        throw new RuntimeError(tokens[ip - 1], "Cannot divide by zero.");
+                    }
+                    nums[sp - 1] /= nums[sp];
+                    break;
+                case OpCode.GREATER:
+                    sp--;
+                    if (stack[sp - 1] != NUM || stack[sp] != NUM) {
+                        Values.checkNumbers(tokens[ip - 1], value(sp - 1), value(sp));
+                    }
+                    stack[sp - 1] = nums[sp - 1] > nums[sp];
+                    break;
+                case OpCode.GREATER_EQUAL:
+                    sp--;
+                    if (stack[sp - 1] != NUM || stack[sp] != NUM) {
+                        Values.checkNumbers(tokens[ip - 1], value(sp - 1), value(sp));
+                    }
+                    stack[sp - 1] = nums[sp - 1] >= nums[sp];
+                    break;
+                case OpCode.LESS:
+                    sp--;
+                    if (stack[sp - 1] != NUM || stack[sp] != NUM) {
+                        Values.checkNumbers(tokens[ip - 1], value(sp - 1), value(sp));
+                    }
+                    stack[sp - 1] = nums[sp - 1] < nums[sp];
+                    break;
+                case OpCode.LESS_EQUAL:
+                    sp--;
+                    if (stack[sp - 1] != NUM || stack[sp] != NUM) {
+                        Values.checkNumbers(tokens[ip - 1], value(sp - 1), value(sp));
+                    }
+                    stack[sp - 1] = nums[sp - 1] <= nums[sp];
+                    break;
+                case OpCode.EQUAL:
+                    sp--;
+                    stack[sp - 1] = Values.isEqual(value(sp - 1), value(sp));
+                    break;
+                case OpCode.NOT_EQUAL:
+                    sp--;
+                    stack[sp - 1] = !Values.isEqual(value(sp - 1), value(sp));
+                    break;
+                case OpCode.NEGATE:
+                    if (stack[sp - 1] != NUM) {
+                        Values.checkNumber(tokens[ip - 1], stack[sp - 1]);
+                    }
+                    nums[sp - 1] = -nums[sp - 1];
+                    break;
+                case OpCode.NOT:
+                    // the NUM marker is truthy, as every number is
+                    stack[sp - 1] = !Values.isTruthy(stack[sp - 1]);
+                    break;
+
+                case OpCode.JUMP:
+                    ip += 1 + code[ip];
+                    break;
+                case OpCode.JUMP_UNLESS_TRUE: {
+                    // if/while/for only take a branch on a literal true
+                    int offset = code[ip];
+                    ip += 1;
+                    if (!Boolean.TRUE.equals(stack[--sp])) {
+                        ip += offset;
+                    }
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSY: {
+                    int offset = code[ip];
+                    ip += 1;
+                    if (!Values.isTruthy(stack[sp - 1])) {
+                        ip += offset;
+                    }
+                    break;
+                }
+                case OpCode.JUMP_IF_TRUTHY: {
+                    int offset = code[ip];
+                    ip += 1;
+                    if (Values.isTruthy(stack[sp - 1])) {
+                        ip += offset;
+                    }
+                    break;
+                }
+                case OpCode.LOOP:
+                    ip += 1 - code[ip];
+                    break;
+
+                case OpCode.PRINT:
+                    Output.println(value(--sp));
+                    break;
+                case OpCode.CLOSURE: {
+                    Proto target = (Proto) constants[code[ip]];
+                    stack[sp++] = new Closure(target, frame.capture(target.declaration));
+                    ip += 1;
+                    break;
+                }
+                case OpCode.CALL: {
+                    Token paren = tokens[ip - 1];
+                    int argc = code[ip++];
+                    Object callee = stack[sp - argc - 1];
+                    if (!(callee instanceof Closure)) {
+                        throw new RuntimeError(paren, "Can only call functions.");
+                    }
+                    Closure closure = (Closure) callee;
+                    Proto target = closure.proto;
+                    if (argc > target.arity) {
+                        throw new RuntimeError(paren,
+                            "Expected " + target.arity + " arguments but got " + argc + ".");
+                    }
+                    if (fp == maxDepth) {
+                        throw new RuntimeError(paren,
+                            "Stack overflow: more than " + maxDepth + " nested calls.");
+                    }
+                    if (fp == callProtos.length) {
+                        growCalls();
+                    }
+                    if (sp + target.maxStack > stack.length) {
+                        growStack(sp + target.maxStack);
+                        stack = this.stack;
+                        nums = this.nums;
+                    }
+
+                    Frame calleeFrame = new Frame(target.frameSize, closure.frame);
+                    for (int i = 0; i < argc; i++) {
+                        calleeFrame.slots[i] = value(sp - argc + i);
+                    }
+                    sp -= argc + 1;
+
+                    callProtos[fp] = proto;
+                    callIps[fp] = ip;
+                    callFrames[fp] = frame;
+                    fp++;
+
+                    proto = target;
+                    code = proto.chunk.code;
+                    tokens = proto.chunk.tokens;
+                    constants = proto.chunk.constants;
+                    frame = calleeFrame;
+                    ip = 0;
+                    break;
+                }
+                case OpCode.TAIL_CALL: {
+                    // The function ends with this call, so the callee takes
+                    // over its place on the call stack and returns straight
+                    // to its caller: a tail call never counts toward maxDepth.
+                    Token paren = tokens[ip - 1];
+                    int argc = code[ip++];
+                    Object callee = stack[sp - argc - 1];
+                    if (!(callee instanceof Closure)) {
+                        throw new RuntimeError(paren, "Can only call functions.");
+                    }
+                    Closure closure = (Closure) callee;
+                    Proto target = closure.proto;
+                    if (argc > target.arity) {
+                        throw new RuntimeError(paren,
+                            "Expected " + target.arity + " arguments but got " + argc + ".");
+                    }
+                    if (sp + target.maxStack > stack.length) {
+                        growStack(sp + target.maxStack);
+                        stack = this.stack;
+                        nums = this.nums;
+                    }
+
+                    Frame calleeFrame = new Frame(target.frameSize, closure.frame);
+                    for (int i = 0; i < argc; i++) {
+                        calleeFrame.slots[i] = value(sp - argc + i);
+                    }
+                    sp -= argc + 1;
+
+                    proto = target;
+                    code = proto.chunk.code;
+                    tokens = proto.chunk.tokens;
+                    constants = proto.chunk.constants;
+                    frame = calleeFrame;
+                    ip = 0;
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    double num = nums[sp];
+                    if (fp == 0) {
+                        return;
+                    }
+                    fp--;
+                    proto = callProtos[fp];
+                    code = proto.chunk.code;
+                    tokens = proto.chunk.tokens;
+                    constants = proto.chunk.constants;
+                    ip = callIps[fp];
+                    frame = callFrames[fp];
+                    callFrames[fp] = null;
+                    nums[sp] = num;
+                    stack[sp++] = result;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+            }
+        }
+    }
+}